@@ -0,0 +1,102 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.simonnordberg.cosmos.api.BatchMovieQuery;
+import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MovieBatch;
+import com.simonnordberg.cosmos.api.MovieQuery;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc.MovieServiceBlockingStub;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc.MovieServiceFutureStub;
+import com.simonnordberg.cosmos.movie.api.MovieServer.MovieServiceImpl;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares resolving a page of ids with one {@code BatchGetMovies} call against the same number
+ * of concurrent {@code GetMovie} calls, through an in-process server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class BatchLookupBenchmark {
+
+  @Param({"100000"})
+  public int catalogSize;
+
+  @Param({"20", "200"})
+  public int batchSize;
+
+  private Server server;
+  private ManagedChannel channel;
+  private MovieServiceBlockingStub blockingStub;
+  private MovieServiceFutureStub futureStub;
+  private BatchMovieQuery batch;
+  private List<MovieQuery> singles;
+
+  @Setup
+  public void setUp() throws IOException {
+    List<Movie> movies = SyntheticCatalog.generate(catalogSize, 42);
+    String name = "benchmark-" + UUID.randomUUID();
+    server = InProcessServerBuilder.forName(name)
+        .addService(new MovieServiceImpl(MovieCatalog.of(movies))).build().start();
+    channel = InProcessChannelBuilder.forName(name).build();
+    blockingStub = MovieServiceGrpc.newBlockingStub(channel);
+    futureStub = MovieServiceGrpc.newFutureStub(channel);
+
+    Random random = new Random(7);
+    BatchMovieQuery.Builder builder = BatchMovieQuery.newBuilder();
+    singles = new ArrayList<>(batchSize);
+    for (int i = 0; i < batchSize; i++) {
+      String id = movies.get(random.nextInt(movies.size())).getId();
+      builder.addIds(id);
+      singles.add(MovieQuery.newBuilder().setId(id).build());
+    }
+    batch = builder.build();
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+  }
+
+  @Benchmark
+  public MovieBatch batch() {
+    return blockingStub.batchGetMovies(batch);
+  }
+
+  @Benchmark
+  public List<Movie> concurrentSingles() throws ExecutionException, InterruptedException {
+    List<ListenableFuture<Movie>> futures = new ArrayList<>(singles.size());
+    for (MovieQuery query : singles) {
+      futures.add(futureStub.getMovie(query));
+    }
+    return Futures.allAsList(futures).get();
+  }
+}
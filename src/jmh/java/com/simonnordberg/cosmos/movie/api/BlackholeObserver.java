@@ -0,0 +1,65 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Server-side stream observer that sinks everything into a JMH {@link Blackhole}. It is always
+ * ready and never cancelled.
+ */
+final class BlackholeObserver<T> extends ServerCallStreamObserver<T> {
+
+  private final Blackhole blackhole;
+
+  BlackholeObserver(Blackhole blackhole) {
+    this.blackhole = blackhole;
+  }
+
+  @Override
+  public void onNext(T value) {
+    blackhole.consume(value);
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    blackhole.consume(t);
+  }
+
+  @Override
+  public void onCompleted() {
+  }
+
+  @Override
+  public boolean isReady() {
+    return true;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return false;
+  }
+
+  @Override
+  public void setOnReadyHandler(Runnable onReadyHandler) {
+  }
+
+  @Override
+  public void setOnCancelHandler(Runnable onCancelHandler) {
+  }
+
+  @Override
+  public void setCompression(String compression) {
+  }
+
+  @Override
+  public void disableAutoInboundFlowControl() {
+  }
+
+  @Override
+  public void request(int count) {
+  }
+
+  @Override
+  public void setMessageCompression(boolean enable) {
+  }
+}
@@ -0,0 +1,123 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc.MovieServiceBlockingStub;
+import com.simonnordberg.cosmos.api.MoviesQuery;
+import com.simonnordberg.cosmos.movie.api.MovieServer.MovieServiceImpl;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@code GetMovies} latency under bursts of duplicate searches, with and without the
+ * {@link SearchCoalescer}. Every benchmark thread is a client that waits for the next burst, which
+ * starts every {@code burstMillis} on the clock, and then sends one of {@code distinctQueries}
+ * hot queries, so each burst holds many copies of a few searches. The wait is not measured. The
+ * search cache is off, as it would be for queries seen for the first time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Threads(16)
+public class CoalescingBenchmark {
+
+  private static final String[] HOT_QUERIES = {"th", "ar", "in", "er", "ou", "ro", "ea", "ng"};
+
+  @Param({"100000"})
+  public int catalogSize;
+
+  @Param({"off", "on"})
+  public String coalescing;
+
+  @Param({"1", "4"})
+  public int distinctQueries;
+
+  @Param({"50"})
+  public int burstMillis;
+
+  private Server server;
+  private ExecutorService handlerExecutor;
+  private ManagedChannel channel;
+  private MovieServiceBlockingStub stub;
+  private MoviesQuery[] queries;
+
+  /**
+   * The search a client sends in the current burst.
+   */
+  @State(Scope.Thread)
+  public static class Burst {
+
+    MoviesQuery query;
+
+    @Setup(Level.Invocation)
+    public void await(CoalescingBenchmark benchmark) {
+      long period = TimeUnit.MILLISECONDS.toNanos(benchmark.burstMillis);
+      long now = System.nanoTime();
+      LockSupport.parkNanos(period - Math.floorMod(now, period));
+      query = benchmark.queries[ThreadLocalRandom.current().nextInt(benchmark.queries.length)];
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    MovieCatalog catalog = MovieCatalog.of(SyntheticCatalog.generate(catalogSize, 42));
+    String name = "benchmark-" + UUID.randomUUID();
+    InProcessServerBuilder builder = InProcessServerBuilder.forName(name)
+        .addService(new MovieServiceImpl(() -> catalog,
+            new SearchCoalescer(SearchCache.none(), coalescing.equals("on")), null,
+            new ChangeFeed(() -> catalog, 0, 1)));
+    handlerExecutor = ServerExecutor.parse("DEFAULT").apply(builder, 0);
+    server = builder.build().start();
+    channel = InProcessChannelBuilder.forName(name).build();
+    stub = MovieServiceGrpc.newBlockingStub(channel);
+
+    queries = new MoviesQuery[Math.min(distinctQueries, HOT_QUERIES.length)];
+    for (int i = 0; i < queries.length; i++) {
+      queries[i] = MoviesQuery.newBuilder().setQuery(HOT_QUERIES[i]).setLimit(10).build();
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    if (handlerExecutor != null) {
+      handlerExecutor.shutdownNow();
+    }
+  }
+
+  @Benchmark
+  public void search(Burst burst, Blackhole blackhole) {
+    Iterator<Movie> movies = stub.getMovies(burst.query);
+    while (movies.hasNext()) {
+      blackhole.consume(movies.next());
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MovieQuery;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc.MovieServiceBlockingStub;
+import com.simonnordberg.cosmos.api.MoviesQuery;
+import com.simonnordberg.cosmos.movie.api.MovieServer.MovieServiceImpl;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the {@link ServerExecutor} modes under concurrent in-process calls. {@code VIRTUAL}
+ * needs a Java 21 JVM; add it with {@code -p executor=DEFAULT,DIRECT,POOL,VIRTUAL} there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Threads(8)
+public class ExecutorBenchmark {
+
+  private static final int KEYS = 1024;
+
+  @Param({"100000"})
+  public int catalogSize;
+
+  @Param({"DEFAULT", "DIRECT", "POOL"})
+  public String executor;
+
+  @Param({"4"})
+  public int poolThreads;
+
+  private Server server;
+  private ExecutorService handlerExecutor;
+  private ManagedChannel channel;
+  private MovieServiceBlockingStub stub;
+  private MovieQuery[] hits;
+  private MoviesQuery search;
+
+  @Setup
+  public void setUp() throws IOException {
+    List<Movie> movies = SyntheticCatalog.generate(catalogSize, 42);
+    String name = "benchmark-" + UUID.randomUUID();
+    InProcessServerBuilder builder = InProcessServerBuilder.forName(name)
+        .addService(new MovieServiceImpl(MovieCatalog.of(movies)));
+    handlerExecutor = ServerExecutor.parse(executor).apply(builder, poolThreads);
+    server = builder.build().start();
+    channel = InProcessChannelBuilder.forName(name).build();
+    stub = MovieServiceGrpc.newBlockingStub(channel);
+
+    Random random = new Random(7);
+    hits = new MovieQuery[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      String id = movies.get(random.nextInt(movies.size())).getId();
+      hits[i] = MovieQuery.newBuilder().setId(id).build();
+    }
+    search = MoviesQuery.newBuilder().setQuery(SyntheticCatalog.RARE_TOKEN).build();
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    if (handlerExecutor != null) {
+      handlerExecutor.shutdownNow();
+    }
+  }
+
+  @Benchmark
+  public Movie idHit() {
+    return stub.getMovie(hits[ThreadLocalRandom.current().nextInt(KEYS)]);
+  }
+
+  @Benchmark
+  public void rareSubstring(Blackhole blackhole) {
+    Iterator<Movie> movies = stub.getMovies(search);
+    while (movies.hasNext()) {
+      blackhole.consume(movies.next());
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MoviesQuery;
+import com.simonnordberg.cosmos.api.SortOrder;
+import com.simonnordberg.cosmos.movie.api.MovieServer.MovieServiceImpl;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@code GetMovies} with year and genre filters and popularity order, against the service
+ * implementation directly. Each call asks for one page, as a client browsing results would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FilterBenchmark {
+
+  @Param({"100000", "1000000"})
+  public int catalogSize;
+
+  private MovieCatalog catalog;
+  private MovieServiceImpl service;
+  private MoviesQuery unfiltered;
+  private MoviesQuery byYear;
+  private MoviesQuery byWideYearRange;
+  private MoviesQuery byYearAndGenre;
+  private MoviesQuery byPopularity;
+
+  @Setup
+  public void setUp() {
+    catalog = MovieCatalog.of(SyntheticCatalog.generate(catalogSize, 42));
+    service = new MovieServiceImpl(catalog);
+    unfiltered = MoviesQuery.newBuilder().setQuery("night").setLimit(20).build();
+    byYear = unfiltered.toBuilder().setMinYear(1970).setMaxYear(1979).build();
+    byWideYearRange = unfiltered.toBuilder().setMinYear(1921).setMaxYear(2018).build();
+    byYearAndGenre = byYear.toBuilder().addGenres("horror").addGenres("thriller").build();
+    byPopularity = byYearAndGenre.toBuilder().setOrder(SortOrder.POPULARITY).build();
+  }
+
+  @Benchmark
+  public void unfiltered(Blackhole blackhole) {
+    service.getMovies(unfiltered, new BlackholeObserver<Movie>(blackhole));
+  }
+
+  @Benchmark
+  public void byYear(Blackhole blackhole) {
+    service.getMovies(byYear, new BlackholeObserver<Movie>(blackhole));
+  }
+
+  @Benchmark
+  public void byWideYearRange(Blackhole blackhole) {
+    service.getMovies(byWideYearRange, new BlackholeObserver<Movie>(blackhole));
+  }
+
+  /**
+   * The filter of {@link #byWideYearRange} alone, without the search it narrows.
+   */
+  @Benchmark
+  public BitSet wideYearRangeFilter() {
+    return catalog.filter(1921, 2018, List.of());
+  }
+
+  @Benchmark
+  public BitSet wideYearRangeAndGenresFilter() {
+    return catalog.filter(1921, 2018, List.of("horror", "thriller"));
+  }
+
+  @Benchmark
+  public void byYearAndGenre(Blackhole blackhole) {
+    service.getMovies(byYearAndGenre, new BlackholeObserver<Movie>(blackhole));
+  }
+
+  @Benchmark
+  public void byPopularity(Blackhole blackhole) {
+    service.getMovies(byPopularity, new BlackholeObserver<Movie>(blackhole));
+  }
+}
@@ -0,0 +1,126 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MovieQuery;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc.MovieServiceBlockingStub;
+import com.simonnordberg.cosmos.api.MoviesQuery;
+import com.simonnordberg.cosmos.movie.api.MovieServer.MovieServiceImpl;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures complete calls through an in-process gRPC server, including marshalling, the default
+ * executor and, optionally, the server interceptors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class InProcessBenchmark {
+
+  public enum Interceptors {
+    NONE,
+    ACCESS_LOG
+  }
+
+  private static final int KEYS = 1024;
+
+  @Param({"10000"})
+  public int catalogSize;
+
+  @Param
+  public Interceptors interceptors;
+
+  private Server server;
+  private AccessLog accessLog;
+  private ManagedChannel channel;
+  private MovieServiceBlockingStub stub;
+  private MovieQuery[] hits;
+  private MovieQuery miss;
+  private MoviesQuery search;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    List<Movie> movies = SyntheticCatalog.generate(catalogSize, 42);
+    MovieServiceImpl service = new MovieServiceImpl(MovieCatalog.of(movies));
+    String name = "benchmark-" + UUID.randomUUID();
+    InProcessServerBuilder builder = InProcessServerBuilder.forName(name);
+    if (interceptors == Interceptors.ACCESS_LOG) {
+      accessLog = AccessLog.open("/dev/null", 8192);
+      builder.addService(
+          ServerInterceptors.intercept(service, new AccessLogInterceptor(accessLog, 1.0)));
+    } else {
+      builder.addService(service);
+    }
+    server = builder.build().start();
+    channel = InProcessChannelBuilder.forName(name).build();
+    stub = MovieServiceGrpc.newBlockingStub(channel);
+
+    Random random = new Random(7);
+    hits = new MovieQuery[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      String id = movies.get(random.nextInt(movies.size())).getId();
+      hits[i] = MovieQuery.newBuilder().setId(id).build();
+    }
+    miss = MovieQuery.newBuilder().setId(SyntheticCatalog.randomId(random)).build();
+    search = MoviesQuery.newBuilder().setQuery(SyntheticCatalog.RARE_TOKEN).build();
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException, IOException {
+    channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    if (accessLog != null) {
+      accessLog.close();
+    }
+  }
+
+  @Benchmark
+  public Movie idHit() {
+    return stub.getMovie(hits[next++ & (KEYS - 1)]);
+  }
+
+  @Benchmark
+  public Object idMiss() {
+    try {
+      return stub.getMovie(miss);
+    } catch (StatusRuntimeException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public void rareSubstring(Blackhole blackhole) {
+    Iterator<Movie> movies = stub.getMovies(search);
+    while (movies.hasNext()) {
+      blackhole.consume(movies.next());
+    }
+  }
+}
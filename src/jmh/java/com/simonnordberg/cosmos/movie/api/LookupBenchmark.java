@@ -0,0 +1,72 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MovieQuery;
+import com.simonnordberg.cosmos.movie.api.MovieServer.MovieServiceImpl;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@code GetMovie} against the service implementation directly, for ids that exist and
+ * ids that do not. Requests are decoded from their wire form on every call, as the server would,
+ * so ids are fresh strings and lookups cannot short-circuit on the catalog's own id instances.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class LookupBenchmark {
+
+  private static final int KEYS = 1 << 16;
+
+  @Param({"10000", "100000", "1000000"})
+  public int catalogSize;
+
+  private MovieServiceImpl service;
+  private byte[][] hits;
+  private byte[][] misses;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    List<Movie> movies = SyntheticCatalog.generate(catalogSize, 42);
+    service = new MovieServiceImpl(MovieCatalog.of(movies));
+    Random random = new Random(7);
+    hits = new byte[KEYS][];
+    misses = new byte[KEYS][];
+    for (int i = 0; i < KEYS; i++) {
+      String id = movies.get(random.nextInt(movies.size())).getId();
+      hits[i] = MovieQuery.newBuilder().setId(id).build().toByteArray();
+      misses[i] = MovieQuery.newBuilder().setId(SyntheticCatalog.randomId(random)).build()
+          .toByteArray();
+    }
+  }
+
+  @Benchmark
+  public void idHit(Blackhole blackhole) throws InvalidProtocolBufferException {
+    service.getMovie(MovieQuery.parseFrom(hits[next++ & (KEYS - 1)]),
+        new BlackholeObserver<Movie>(blackhole));
+  }
+
+  @Benchmark
+  public void idMiss(Blackhole blackhole) throws InvalidProtocolBufferException {
+    service.getMovie(MovieQuery.parseFrom(misses[next++ & (KEYS - 1)]),
+        new BlackholeObserver<Movie>(blackhole));
+  }
+}
@@ -0,0 +1,115 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.ByteString;
+import com.simonnordberg.cosmos.api.Movie;
+import io.grpc.Drainable;
+import io.grpc.MethodDescriptor.Marshaller;
+import io.grpc.protobuf.ProtoUtils;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares writing a catalog movie to the transport with the generated protobuf marshaller and
+ * with {@link EncodedMessageMarshaller}, for movies held on the heap and in a mapped
+ * {@link CatalogSnapshot}. All are drained into the same reusable sink, the way the transport
+ * drains them into its outbound buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarshallingBenchmark {
+
+  private static final int KEYS = 1024;
+
+  private final Marshaller<Movie> protoMarshaller =
+      ProtoUtils.marshaller(Movie.getDefaultInstance());
+  private final Sink sink = new Sink();
+  private Movie[] movies;
+  private ByteString[] encoded;
+  private ByteString[] mapped;
+  private Path snapshotPath;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    List<Movie> generated = SyntheticCatalog.generate(KEYS, 42);
+    MovieCatalog catalog = MovieCatalog.of(generated);
+    movies = new Movie[KEYS];
+    encoded = new ByteString[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      movies[i] = catalog.get(i);
+      encoded[i] = catalog.serialized(i);
+    }
+    snapshotPath = Files.createTempFile("marshalling", ".snapshot");
+    CatalogSnapshot.write(generated, snapshotPath);
+    CatalogSnapshot snapshot = CatalogSnapshot.open(snapshotPath);
+    mapped = new ByteString[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      mapped[i] = snapshot.encoded(i);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(snapshotPath);
+  }
+
+  @Benchmark
+  public int protobuf() throws IOException {
+    sink.reset();
+    return ((Drainable) protoMarshaller.stream(movies[next++ & (KEYS - 1)])).drainTo(sink);
+  }
+
+  @Benchmark
+  public int preEncoded() throws IOException {
+    sink.reset();
+    return ((Drainable) EncodedMessageMarshaller.INSTANCE.stream(encoded[next++ & (KEYS - 1)]))
+        .drainTo(sink);
+  }
+
+  @Benchmark
+  public int preEncodedSnapshot() throws IOException {
+    sink.reset();
+    return ((Drainable) EncodedMessageMarshaller.INSTANCE.stream(mapped[next++ & (KEYS - 1)]))
+        .drainTo(sink);
+  }
+
+  private static final class Sink extends OutputStream {
+
+    private final byte[] buffer = new byte[4096];
+    private int position;
+
+    void reset() {
+      position = 0;
+    }
+
+    @Override
+    public void write(int b) {
+      buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      System.arraycopy(b, off, buffer, position, len);
+      position += len;
+    }
+  }
+}
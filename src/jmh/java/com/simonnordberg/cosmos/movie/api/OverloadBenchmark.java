@@ -0,0 +1,284 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc.MovieServiceBlockingStub;
+import com.simonnordberg.cosmos.api.MoviesQuery;
+import com.simonnordberg.cosmos.movie.api.MovieServer.MovieServiceImpl;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.health.v1.HealthCheckRequest;
+import io.grpc.health.v1.HealthCheckResponse;
+import io.grpc.health.v1.HealthGrpc;
+import io.grpc.health.v1.HealthGrpc.HealthBlockingStub;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.protobuf.services.HealthStatusManager;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drives a server past saturation with searches that carry a deadline, with and without the
+ * {@link ConcurrencyLimiter}. Each benchmark thread is a client that backs off after a failed
+ * call: for one deadline after a rejection, as a client told to retry later would, and briefly
+ * after an expired call. {@code ok} is the goodput: searches answered within their deadline; run
+ * with different {@code -t} values to see it against the number of clients. Without admission
+ * control latency grows with every client until calls expire while the server still works on them.
+ *
+ * <p>Backing off turns the offered load down as the server degrades, which flatters it. The
+ * {@code openLoop} group offers searches at a fixed {@code offeredPerSecond} however they fare, as
+ * many independent clients would, and one more client meanwhile probes the health service, whose
+ * latency is what an orchestrator deciding whether to restart the server would see.
+ *
+ * <p>The limiter only sees calls once the executor runs them, so with a bounded {@code POOL}
+ * executor calls can still queue in front of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class OverloadBenchmark {
+
+  private static final long BACKOFF_MILLIS = 5;
+  // Searches the open loop leaves outstanding before it counts further ones as skipped.
+  private static final int MAX_OUTSTANDING = 10_000;
+
+  @Param({"100000"})
+  public int catalogSize;
+
+  @Param({"off", "adaptive"})
+  public String admission;
+
+  @Param({"50"})
+  public int deadlineMillis;
+
+  @Param({"DEFAULT"})
+  public String executor;
+
+  @Param({"4"})
+  public int poolThreads;
+
+  @Param({"2000"})
+  public int offeredPerSecond;
+
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final LongAdder offeredOk = new LongAdder();
+  private final LongAdder offeredRejected = new LongAdder();
+  private final LongAdder offeredExpired = new LongAdder();
+  private final LongAdder offeredSkipped = new LongAdder();
+  private final LongAdder healthFailed = new LongAdder();
+  private Server server;
+  private ExecutorService handlerExecutor;
+  private ManagedChannel channel;
+  private MovieServiceBlockingStub stub;
+  private MovieServiceGrpc.MovieServiceStub asyncStub;
+  private HealthBlockingStub health;
+  private MoviesQuery search;
+  private long nextDueNanos;
+  private long iterationStartNanos;
+  private long[] iterationStart;
+
+  /**
+   * Outcomes of the calls of one client, reported as rates.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Outcomes {
+
+    public long ok;
+    public long rejected;
+    public long expired;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      ok = 0;
+      rejected = 0;
+      expired = 0;
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    String name = "benchmark-" + UUID.randomUUID();
+    InProcessServerBuilder builder = InProcessServerBuilder.forName(name)
+        .addService(new MovieServiceImpl(
+            MovieCatalog.of(SyntheticCatalog.generate(catalogSize, 42))))
+        .addService(new HealthStatusManager().getHealthService());
+    if (admission.equals("adaptive")) {
+      builder.intercept(new ConcurrencyLimiter(20, 200, Set.of()));
+    }
+    handlerExecutor = ServerExecutor.parse(executor).apply(builder, poolThreads);
+    server = builder.build().start();
+    channel = InProcessChannelBuilder.forName(name).build();
+    stub = MovieServiceGrpc.newBlockingStub(channel);
+    asyncStub = MovieServiceGrpc.newStub(channel);
+    health = HealthGrpc.newBlockingStub(channel);
+    nextDueNanos = System.nanoTime();
+    // Short queries scan every title, a few milliseconds of work per call.
+    search = MoviesQuery.newBuilder().setQuery("qx").setLimit(10).build();
+  }
+
+  @Setup(Level.Iteration)
+  public void startIteration() {
+    // The open loop owes nothing for the pause between iterations.
+    nextDueNanos = System.nanoTime();
+    iterationStartNanos = nextDueNanos;
+    iterationStart = openLoopTotals();
+  }
+
+  /**
+   * Prints what became of the searches the open loop offered, which sample time cannot report.
+   */
+  @TearDown(Level.Iteration)
+  public void reportIteration() {
+    long[] totals = openLoopTotals();
+    long offered = 0;
+    for (int i = 0; i < totals.length - 1; i++) {
+      totals[i] -= iterationStart[i];
+      offered += totals[i];
+    }
+    if (offered == 0) {
+      return;
+    }
+    double seconds = (System.nanoTime() - iterationStartNanos) / 1e9;
+    System.out.printf("%nOpen loop per second: %.0f ok, %.0f rejected, %.0f expired,"
+        + " %.0f skipped; %d failed health checks%n", totals[0] / seconds, totals[1] / seconds,
+        totals[2] / seconds, totals[3] / seconds, totals[4] - iterationStart[4]);
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    if (handlerExecutor != null) {
+      handlerExecutor.shutdownNow();
+    }
+  }
+
+  @Benchmark
+  @Threads(32)
+  public int search(Outcomes outcomes) {
+    try {
+      Iterator<Movie> movies = stub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS)
+          .getMovies(search);
+      int count = 0;
+      while (movies.hasNext()) {
+        movies.next();
+        count++;
+      }
+      outcomes.ok++;
+      return count;
+    } catch (StatusRuntimeException e) {
+      long backoffMillis;
+      if (e.getStatus().getCode() == Status.Code.RESOURCE_EXHAUSTED) {
+        outcomes.rejected++;
+        backoffMillis = deadlineMillis;
+      } else if (e.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED) {
+        outcomes.expired++;
+        backoffMillis = BACKOFF_MILLIS;
+      } else {
+        throw e;
+      }
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backoffMillis));
+      return 0;
+    }
+  }
+
+  /**
+   * Offers the next search of the open loop once it is due and returns without waiting for it.
+   * A loop that fell behind its schedule offers the searches it owes at once.
+   */
+  @Benchmark
+  @Group("openLoop")
+  @GroupThreads(1)
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void offer() {
+    long due = nextDueNanos;
+    nextDueNanos += TimeUnit.SECONDS.toNanos(1) / offeredPerSecond;
+    long wait;
+    while ((wait = due - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(wait);
+    }
+    if (outstanding.incrementAndGet() > MAX_OUTSTANDING) {
+      outstanding.decrementAndGet();
+      offeredSkipped.increment();
+      return;
+    }
+    asyncStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).getMovies(search,
+        new StreamObserver<>() {
+          @Override
+          public void onNext(Movie movie) {
+          }
+
+          @Override
+          public void onError(Throwable t) {
+            outstanding.decrementAndGet();
+            Status.Code code = Status.fromThrowable(t).getCode();
+            if (code == Status.Code.RESOURCE_EXHAUSTED) {
+              offeredRejected.increment();
+            } else if (code == Status.Code.DEADLINE_EXCEEDED) {
+              offeredExpired.increment();
+            }
+          }
+
+          @Override
+          public void onCompleted() {
+            outstanding.decrementAndGet();
+            offeredOk.increment();
+          }
+        });
+  }
+
+  /**
+   * Probes the health service as an orchestrator would, with a one second timeout.
+   */
+  @Benchmark
+  @Group("openLoop")
+  @GroupThreads(1)
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public HealthCheckResponse health() {
+    try {
+      return health.withDeadlineAfter(1, TimeUnit.SECONDS)
+          .check(HealthCheckRequest.getDefaultInstance());
+    } catch (StatusRuntimeException e) {
+      healthFailed.increment();
+      return null;
+    }
+  }
+
+  private long[] openLoopTotals() {
+    return new long[] {offeredOk.sum(), offeredRejected.sum(), offeredExpired.sum(),
+        offeredSkipped.sum(), healthFailed.sum()};
+  }
+}
@@ -0,0 +1,79 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the brute-force title scan across catalog sizes and core counts. The scanner is given
+ * a fork-join pool of the given parallelism for its parallel slices.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ScanBenchmark {
+
+  @Param({"10000", "100000", "1000000"})
+  public int catalogSize;
+
+  @Param({"1", "2", "4"})
+  public int parallelism;
+
+  @Param({"zy", "q", "th"})
+  public String needle;
+
+  private String[] titles;
+  private TitleScanner scanner;
+  private ForkJoinPool pool;
+
+  @Setup
+  public void setUp() {
+    List<Movie> movies = SyntheticCatalog.generate(catalogSize, 42);
+    titles = new String[movies.size()];
+    for (int i = 0; i < titles.length; i++) {
+      titles[i] = TitleIndex.normalize(movies.get(i).getName());
+    }
+    pool = new ForkJoinPool(parallelism);
+    scanner = new TitleScanner(new TitleColumn(titles), pool);
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Benchmark
+  public int[] scan() {
+    return scanner.scan(needle);
+  }
+
+  /**
+   * The sequential {@code String.contains} loop the scan replaced, for reference.
+   */
+  @Benchmark
+  public int stringContains() {
+    int count = 0;
+    for (String title : titles) {
+      if (title.contains(needle)) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
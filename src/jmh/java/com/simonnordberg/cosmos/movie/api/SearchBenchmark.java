@@ -0,0 +1,63 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MoviesQuery;
+import com.simonnordberg.cosmos.movie.api.MovieServer.MovieServiceImpl;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@code GetMovies} against the service implementation directly, without transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SearchBenchmark {
+
+  public enum Query {
+    SHORT_PREFIX("th"),
+    COMMON_SUBSTRING("night"),
+    RARE_SUBSTRING(SyntheticCatalog.RARE_TOKEN),
+    MISS(SyntheticCatalog.MISSING_TOKEN);
+
+    final String text;
+
+    Query(String text) {
+      this.text = text;
+    }
+  }
+
+  @Param({"10000", "100000", "1000000"})
+  public int catalogSize;
+
+  @Param
+  public Query query;
+
+  private MovieServiceImpl service;
+  private MoviesQuery request;
+
+  @Setup
+  public void setUp() {
+    service = new MovieServiceImpl(MovieCatalog.of(SyntheticCatalog.generate(catalogSize, 42)));
+    request = MoviesQuery.newBuilder().setQuery(query.text).build();
+  }
+
+  @Benchmark
+  public void getMovies(Blackhole blackhole) {
+    service.getMovies(request, new BlackholeObserver<Movie>(blackhole));
+  }
+}
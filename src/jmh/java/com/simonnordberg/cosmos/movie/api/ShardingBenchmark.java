@@ -0,0 +1,161 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MovieQuery;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc.MovieServiceBlockingStub;
+import com.simonnordberg.cosmos.api.MoviesQuery;
+import com.simonnordberg.cosmos.movie.api.MovieServer.MovieServiceImpl;
+import com.simonnordberg.cosmos.movie.api.MovieServer.MovieShardImpl;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@code GetMovies} and {@code GetMovie} through the {@link ShardRouter} of a sharded
+ * deployment running in-process: {@code shards} shards of two replicas each. One replica of every
+ * shard is a straggler that stalls {@code stallPercent} of its shard calls for {@code stallMillis},
+ * as a replica in a GC pause or on a busy host would, so the tail of every scatter-gather depends
+ * on whether the router hedges ({@code hedgeAfterMillis} greater than 0). One shard is equivalent
+ * to an unsharded server with the same hop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@Threads(4)
+public class ShardingBenchmark {
+
+  @Param({"100000"})
+  public int catalogSize;
+
+  @Param({"1", "4"})
+  public int shards;
+
+  @Param({"0", "10"})
+  public long hedgeAfterMillis;
+
+  @Param({"5"})
+  public int stallPercent;
+
+  @Param({"50"})
+  public int stallMillis;
+
+  private final List<Server> servers = new ArrayList<>();
+  private final List<ShardRouter> routers = new ArrayList<>();
+  private ManagedChannel channel;
+  private MovieServiceBlockingStub stub;
+  private MovieQuery[] lookups;
+  private MoviesQuery search;
+
+  @Setup
+  public void setUp() throws IOException {
+    List<Movie> movies = SyntheticCatalog.generate(catalogSize, 42);
+    String deployment = "sharding-" + UUID.randomUUID();
+    List<List<String>> replicas = new ArrayList<>();
+    for (int shard = 0; shard < shards; shard++) {
+      replicas.add(List.of(deployment + "-" + shard + "-0", deployment + "-" + shard + "-1"));
+    }
+    ShardRing ring = new ShardRing(replicas);
+    MovieRecords records = new HeapMovieRecords(movies);
+    for (int shard = 0; shard < shards; shard++) {
+      ShardRecords owned = ShardRecords.select(records, ring, shard);
+      IndexedCatalog catalog = IndexedCatalog.ofShard(1, owned);
+      for (int replica = 0; replica < 2; replica++) {
+        SearchCoalescer searchCoalescer = new SearchCoalescer(SearchCache.none(), true);
+        MovieShardImpl shardService = new MovieShardImpl(catalog, owned, searchCoalescer);
+        String local = ring.replicas(shard).get(replica) + "-local";
+        servers.add(InProcessServerBuilder.forName(local).addService(shardService).build().start());
+        ShardRouter router = new ShardRouter(ring, shard,
+            InProcessChannelBuilder.forName(local).build(),
+            target -> InProcessChannelBuilder.forName(target).build(), hedgeAfterMillis);
+        routers.add(router);
+        InProcessServerBuilder builder = InProcessServerBuilder
+            .forName(ring.replicas(shard).get(replica))
+            .addService(new MovieServiceImpl(() -> catalog, searchCoalescer, null,
+                new ChangeFeed(() -> catalog, 1, 1), router).bindEncodedService());
+        builder.addService(replica == 0
+            ? ServerInterceptors.intercept(shardService, new Straggler())
+            : shardService.bindService());
+        servers.add(builder.build().start());
+      }
+    }
+    // Clients call the replica that is not a straggler, so only shard calls stall.
+    channel = InProcessChannelBuilder.forName(ring.replicas(0).get(1)).build();
+    stub = MovieServiceGrpc.newBlockingStub(channel);
+
+    lookups = new MovieQuery[1024];
+    for (int i = 0; i < lookups.length; i++) {
+      lookups[i] = MovieQuery.newBuilder().setId(movies.get(i * 7 % movies.size()).getId())
+          .build();
+    }
+    search = MoviesQuery.newBuilder().setQuery("night").setLimit(20).build();
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    routers.forEach(ShardRouter::close);
+    for (Server server : servers) {
+      server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+  }
+
+  @Benchmark
+  public void getMovies(Blackhole blackhole) {
+    Iterator<Movie> movies = stub.getMovies(search);
+    while (movies.hasNext()) {
+      blackhole.consume(movies.next());
+    }
+  }
+
+  @Benchmark
+  public Movie getMovie() {
+    return stub.getMovie(lookups[ThreadLocalRandom.current().nextInt(lookups.length)]);
+  }
+
+  /**
+   * Holds back the start of some calls.
+   */
+  private final class Straggler implements ServerInterceptor {
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+        Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+      if (ThreadLocalRandom.current().nextInt(100) < stallPercent) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(stallMillis));
+      }
+      return next.startCall(call, headers);
+    }
+  }
+}
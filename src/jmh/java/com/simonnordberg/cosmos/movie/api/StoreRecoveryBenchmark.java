@@ -0,0 +1,80 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures opening a {@link MovieStore} after a restart: loading its snapshot, replaying
+ * {@code logRecords} changes from the log and building the catalog indexes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class StoreRecoveryBenchmark {
+
+  @Param({"100000", "1000000"})
+  public int catalogSize;
+
+  @Param({"0", "10000"})
+  public int logRecords;
+
+  private Path directory;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("store-benchmark");
+    List<Movie> movies = SyntheticCatalog.generate(catalogSize, 42);
+    try (MovieStore store = MovieStore.open(directory, movies, Long.MAX_VALUE)) {
+      List<CompletableFuture<Movie>> writes = new ArrayList<>(logRecords);
+      for (int i = 0; i < logRecords; i++) {
+        Movie movie = movies.get(i % movies.size());
+        writes.add(store.update(movie.toBuilder().setPopularity(movie.getPopularity() + 1)
+            .build()));
+      }
+      writes.forEach(CompletableFuture::join);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    delete(directory);
+  }
+
+  @Benchmark
+  public MovieCatalog recover() throws IOException {
+    try (MovieStore store = MovieStore.open(directory, List.of(), Long.MAX_VALUE)) {
+      return store.get();
+    }
+  }
+
+  static void delete(Path directory) throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures durable writes to a {@link MovieStore} in a temporary directory, from one writer and
+ * from many concurrent writers that share group commits. Compactions happen as they would in
+ * production and are part of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class StoreWriteBenchmark {
+
+  @Param({"100000"})
+  public int catalogSize;
+
+  @Param({"1024", "8192"})
+  public int compactAfter;
+
+  private final AtomicLong ids = new AtomicLong();
+  private Path directory;
+  private MovieStore store;
+  private List<Movie> templates;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("store-benchmark");
+    templates = SyntheticCatalog.generate(1024, 7);
+    store = MovieStore.open(directory, SyntheticCatalog.generate(catalogSize, 42),
+        compactAfter);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    store.close();
+    StoreRecoveryBenchmark.delete(directory);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Movie createSingleWriter() {
+    return create();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public Movie createConcurrentWriters() {
+    return create();
+  }
+
+  private Movie create() {
+    long id = ids.incrementAndGet();
+    Movie movie = templates.get((int) (id & 1023)).toBuilder().setId("written-" + id).build();
+    return store.create(movie).join();
+  }
+}
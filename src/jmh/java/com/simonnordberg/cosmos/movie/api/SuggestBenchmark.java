@@ -0,0 +1,60 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures top-k prefix suggestions, and prints the index footprint for each catalog size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SuggestBenchmark {
+
+  @Param({"10000", "100000", "1000000"})
+  public int catalogSize;
+
+  @Param({"s", "sh", "shadow", "night of"})
+  public String prefix;
+
+  @Param({"10"})
+  public int k;
+
+  private SuggestIndex index;
+
+  @Setup
+  public void setUp() {
+    List<Movie> movies = SyntheticCatalog.generate(catalogSize, 42);
+    String[] titles = new String[movies.size()];
+    float[] scores = new float[movies.size()];
+    Random random = new Random(7);
+    for (int i = 0; i < titles.length; i++) {
+      titles[i] = TitleIndex.normalize(movies.get(i).getName());
+      scores[i] = random.nextFloat();
+    }
+    index = new SuggestIndex(new TitleColumn(titles), scores);
+    System.out.printf("%nSuggestIndex footprint for %d titles: %d bytes%n", catalogSize,
+        index.footprintBytes());
+  }
+
+  @Benchmark
+  public int[] suggest() {
+    return index.suggest(prefix, k);
+  }
+}
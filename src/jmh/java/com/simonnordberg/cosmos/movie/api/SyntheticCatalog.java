@@ -0,0 +1,71 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates reproducible catalogs of arbitrary size for benchmarks.
+ */
+final class SyntheticCatalog {
+
+  /**
+   * Token placed in roughly one title per thousand, for queries with few matches.
+   */
+  static final String RARE_TOKEN = "zyzzyva";
+
+  /**
+   * Token that never appears in a generated title.
+   */
+  static final String MISSING_TOKEN = "qxjqz";
+
+  private static final String[] WORDS = {"the", "of", "a", "night", "day", "return", "dark",
+      "star", "love", "war", "city", "man", "woman", "last", "first", "lost", "king", "queen",
+      "house", "road", "river", "dream", "ghost", "blood", "fire", "ice", "shadow", "light",
+      "secret", "story", "journey", "empire", "island", "summer", "winter", "garden", "machine",
+      "angel", "devil", "stranger", "heart", "storm", "silence", "hunter", "crown", "mirror"};
+
+  static final String[] GENRES = {"Drama", "Comedy", "Thriller", "Horror", "Romance", "Action",
+      "Documentary", "Animation", "Science Fiction", "Western"};
+
+  private SyntheticCatalog() {
+  }
+
+  static List<Movie> generate(int size, long seed) {
+    Random random = new Random(seed);
+    List<Movie> movies = new ArrayList<>(size);
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      name.setLength(0);
+      int words = 1 + random.nextInt(4);
+      for (int w = 0; w < words; w++) {
+        if (w > 0) {
+          name.append(' ');
+        }
+        String word = WORDS[random.nextInt(WORDS.length)];
+        name.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+      }
+      if (random.nextInt(1000) == 0) {
+        name.append(' ').append(RARE_TOKEN);
+      }
+      int year = 1920 + random.nextInt(104);
+      name.append(" (").append(year).append(')');
+      Movie.Builder movie = Movie.newBuilder().setId(randomId(random)).setName(name.toString())
+          .setYear(year)
+          .setRuntimeMinutes(70 + random.nextInt(110))
+          // Skewed like real popularity: most movies are obscure, a few are very popular.
+          .setPopularity((float) Math.pow(random.nextDouble(), 4) * 100);
+      for (int g = 1 + random.nextInt(3); g > 0; g--) {
+        movie.addGenres(GENRES[random.nextInt(GENRES.length)]);
+      }
+      movies.add(movie.build());
+    }
+    return movies;
+  }
+
+  static String randomId(Random random) {
+    return new UUID(random.nextLong(), random.nextLong()).toString();
+  }
+}
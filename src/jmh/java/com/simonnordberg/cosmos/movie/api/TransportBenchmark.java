@@ -0,0 +1,106 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MovieQuery;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc.MovieServiceBlockingStub;
+import com.simonnordberg.cosmos.api.MoviesQuery;
+import com.simonnordberg.cosmos.movie.api.MovieServer.MovieServiceImpl;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the {@code default} transport profile, gRPC's generic {@link ServerBuilder}, with the
+ * {@code tuned} {@link NettyTransport} over TCP on localhost. The tuned profile reads its settings
+ * from system properties, so variants can be measured with {@code -jvmArgsAppend}, for example
+ * {@code -Dmovie.netty.epoll=off}. The heap is as small as the deployment's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx64m")
+@Threads(16)
+public class TransportBenchmark {
+
+  @Param({"10000"})
+  public int catalogSize;
+
+  @Param({"default", "tuned"})
+  public String transportProfile;
+
+  private NettyTransport transport;
+  private Server server;
+  private ManagedChannel channel;
+  private MovieServiceBlockingStub stub;
+  private MovieQuery[] lookups;
+  private MoviesQuery search;
+
+  @Setup
+  public void setUp() throws IOException {
+    List<Movie> movies = SyntheticCatalog.generate(catalogSize, 42);
+    ServerBuilder<?> builder;
+    if (transportProfile.equals("tuned")) {
+      transport = NettyTransport.fromConfig();
+      builder = transport.serverBuilder(0);
+    } else {
+      builder = ServerBuilder.forPort(0);
+    }
+    server = builder.addService(new MovieServiceImpl(MovieCatalog.of(movies)).bindEncodedService())
+        .build().start();
+    channel = NettyChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext()
+        .build();
+    stub = MovieServiceGrpc.newBlockingStub(channel);
+
+    lookups = new MovieQuery[1024];
+    for (int i = 0; i < lookups.length; i++) {
+      lookups[i] = MovieQuery.newBuilder().setId(movies.get(i * 7 % movies.size()).getId())
+          .build();
+    }
+    search = MoviesQuery.newBuilder().setQuery("night").setLimit(100).build();
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    if (transport != null) {
+      transport.close();
+    }
+  }
+
+  @Benchmark
+  public Movie getMovie() {
+    return stub.getMovie(lookups[ThreadLocalRandom.current().nextInt(lookups.length)]);
+  }
+
+  @Benchmark
+  public void getMovies(Blackhole blackhole) {
+    Iterator<Movie> movies = stub.getMovies(search);
+    while (movies.hasNext()) {
+      blackhole.consume(movies.next());
+    }
+  }
+}
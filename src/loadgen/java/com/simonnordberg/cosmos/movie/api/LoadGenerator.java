@@ -0,0 +1,373 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.CatalogChange;
+import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MovieQuery;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc.MovieServiceStub;
+import com.simonnordberg.cosmos.api.MoviesQuery;
+import com.simonnordberg.cosmos.api.WatchCatalogRequest;
+import com.simonnordberg.cosmos.movie.api.MovieServer.MovieServiceImpl;
+import com.simonnordberg.cosmos.movie.api.Workload.Method;
+import com.simonnordberg.cosmos.movie.api.Workload.Request;
+import io.grpc.Context;
+import io.grpc.Context.CancellableContext;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Open-loop load generator for {@code MovieService}. Requests are sent at a fixed arrival rate
+ * whether or not earlier ones have completed, as independent users would send them, so a slow
+ * server faces a growing backlog instead of a client that politely waits.
+ *
+ * <p>Latency is measured from the moment each request was due to be sent, not from when it was
+ * actually sent. A generator that falls behind, or a server that stalls, therefore shows up in
+ * the percentiles instead of silently lowering the load, which corrects for coordinated omission.
+ * The latency from the actual send is reported next to it; a large gap between the two means the
+ * generator itself could not keep up.
+ *
+ * <pre>
+ *   mvn -Ploadgen test-compile exec:exec -Dloadgen.args="rate=500 duration=30"
+ * </pre>
+ * Options, all {@code name=value}:
+ * <ul>
+ *   <li>{@code target}: {@code host:port} of a running server, or {@code in-process} (default)
+ *       to start one in this JVM serving {@code catalog}, a catalog snapshot file, or the built-in
+ *       catalog.
+ *   <li>{@code rate} requests per second (100), {@code duration} seconds measured (30) after
+ *       {@code warmup} seconds that are not (5).
+ *   <li>{@code trace}: a file of requests to replay, see {@link Workload#trace}. Without one a
+ *       Zipfian mix is synthesized from the served catalog, read over {@code WatchCatalog}, with
+ *       {@code zipf-exponent} (1.0), {@code lookup-ratio} (0.5) and {@code seed} (1). Sharded
+ *       servers do not serve {@code WatchCatalog}, so load them with a trace.
+ *   <li>{@code limit} (20) of searches without their own, {@code deadline-ms} (1000),
+ *       {@code channels} (1), and {@code max-outstanding} (10000) requests in flight beyond which
+ *       due requests are not sent. They are recorded as failures that took the whole deadline
+ *       from when they were due, as they would have for a user, so the percentiles do not omit
+ *       them, and their share of the measured requests is reported.
+ *   <li>{@code histogram-log}: a file to write the corrected histograms to, tagged by method, in
+ *       HdrHistogram's log format for comparing runs.
+ * </ul>
+ */
+public class LoadGenerator {
+
+  private final Map<String, String> options;
+  private final Map<Method, MethodStats> stats = new EnumMap<>(Method.class);
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private long maxSendLagNanos;
+
+  private LoadGenerator(Map<String, String> options) {
+    this.options = options;
+    for (Method method : Method.values()) {
+      stats.put(method, new MethodStats());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new LinkedHashMap<>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (equals <= 0) {
+        System.err.println("Usage: LoadGenerator [name=value]..., see the class documentation");
+        System.exit(2);
+      }
+      options.put(arg.substring(0, equals), arg.substring(equals + 1));
+    }
+    new LoadGenerator(options).run();
+  }
+
+  private void run() throws Exception {
+    String target = option("target", "in-process");
+    Server server = null;
+    List<ManagedChannel> channels = new ArrayList<>();
+    try {
+      String name = null;
+      if (target.equals("in-process")) {
+        String catalogPath = options.get("catalog");
+        MovieCatalog catalog = catalogPath != null ? MovieCatalog.open(Path.of(catalogPath), 1)
+            : MovieCatalog.of(MovieServer.getMovies());
+        name = "loadgen-" + UUID.randomUUID();
+        server = InProcessServerBuilder.forName(name)
+            .addService(new MovieServiceImpl(catalog).bindEncodedService()).build().start();
+      }
+      for (int i = 0; i < Integer.parseInt(option("channels", "1")); i++) {
+        channels.add(name != null ? InProcessChannelBuilder.forName(name).build()
+            : ManagedChannelBuilder.forTarget(target).usePlaintext().build());
+      }
+      MovieServiceStub[] stubs = channels.stream().map(MovieServiceGrpc::newStub)
+          .toArray(MovieServiceStub[]::new);
+
+      Workload workload = workload(channels.get(0));
+      generate(workload, stubs);
+      report(System.out);
+      String histogramLog = options.get("histogram-log");
+      if (histogramLog != null) {
+        writeHistograms(Path.of(histogramLog));
+      }
+    } finally {
+      for (ManagedChannel channel : channels) {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+      }
+      if (server != null) {
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+      }
+    }
+  }
+
+  private Workload workload(ManagedChannel channel) throws IOException {
+    int limit = Integer.parseInt(option("limit", "20"));
+    String trace = options.get("trace");
+    if (trace != null) {
+      return Workload.trace(Path.of(trace), limit);
+    }
+    List<Movie> movies = readCatalog(channel);
+    System.out.println("Synthesizing requests from " + movies.size() + " movies");
+    return Workload.zipf(movies, Double.parseDouble(option("zipf-exponent", "1.0")),
+        Double.parseDouble(option("lookup-ratio", "0.5")), limit,
+        Long.parseLong(option("seed", "1")));
+  }
+
+  /**
+   * Reads the movies the server holds from the snapshot {@code WatchCatalog} starts with.
+   */
+  private static List<Movie> readCatalog(ManagedChannel channel) {
+    List<Movie> movies = new ArrayList<>();
+    // The stream would follow the catalog forever; cancelling the context ends it.
+    CancellableContext context = Context.current().withCancellation();
+    Context previous = context.attach();
+    try {
+      Iterator<CatalogChange> changes = MovieServiceGrpc.newBlockingStub(channel)
+          .watchCatalog(WatchCatalogRequest.getDefaultInstance());
+      while (changes.hasNext()) {
+        CatalogChange change = changes.next();
+        movies.addAll(change.getUpsertsList());
+        if (change.getSnapshotEnd()) {
+          break;
+        }
+      }
+    } finally {
+      context.detach(previous);
+      context.cancel(null);
+    }
+    return movies;
+  }
+
+  /**
+   * Sends requests at the configured rate for the warmup and the measured duration, then waits
+   * for the outstanding ones to complete.
+   */
+  private void generate(Workload workload, MovieServiceStub[] stubs) throws InterruptedException {
+    double rate = Double.parseDouble(option("rate", "100"));
+    long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "5")));
+    long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "30")));
+    long deadlineMillis = Long.parseLong(option("deadline-ms", "1000"));
+    int maxOutstanding = Integer.parseInt(option("max-outstanding", "10000"));
+    System.out.println("Sending " + rate + " requests/s for " + warmupNanos / 1_000_000_000
+        + " s of warmup and " + durationNanos / 1_000_000_000 + " s measured");
+
+    long start = System.nanoTime();
+    long measureFrom = start + warmupNanos;
+    long end = measureFrom + durationNanos;
+    for (long i = 0; ; i++) {
+      long due = start + (long) (i * 1e9 / rate);
+      if (due >= end) {
+        break;
+      }
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      Request request = workload.next();
+      boolean measured = due >= measureFrom;
+      long sent = System.nanoTime();
+      if (measured) {
+        maxSendLagNanos = Math.max(maxSendLagNanos, sent - due);
+      }
+      if (outstanding.get() >= maxOutstanding) {
+        if (measured) {
+          stats.get(request.method).notSent(TimeUnit.MILLISECONDS.toNanos(deadlineMillis));
+        }
+        continue;
+      }
+      outstanding.incrementAndGet();
+      send(stubs[(int) (i % stubs.length)].withDeadlineAfter(deadlineMillis,
+          TimeUnit.MILLISECONDS), request, new Completion(stats.get(request.method), due, sent,
+          measured));
+    }
+    long drainUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis + 5000);
+    while (outstanding.get() > 0 && System.nanoTime() < drainUntil) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static void send(MovieServiceStub stub, Request request, Completion completion) {
+    if (request.method == Method.GET_MOVIE) {
+      stub.getMovie(MovieQuery.newBuilder().setId(request.argument).build(), completion);
+    } else {
+      stub.getMovies(MoviesQuery.newBuilder().setQuery(request.argument)
+          .setLimit(request.limit).build(), completion);
+    }
+  }
+
+  private void report(PrintStream out) {
+    long measured = 0;
+    long notSent = 0;
+    for (MethodStats method : stats.values()) {
+      measured += method.corrected().getTotalCount();
+      notSent += method.notSent.sum();
+    }
+    out.printf("%nMax send lag %.3f ms, %d due requests not sent (over max-outstanding),"
+        + " %s of measured%n", maxSendLagNanos / 1e6, notSent, share(notSent, measured));
+    for (Map.Entry<Method, MethodStats> entry : stats.entrySet()) {
+      MethodStats method = entry.getValue();
+      Histogram corrected = method.corrected();
+      if (corrected.getTotalCount() == 0) {
+        continue;
+      }
+      Map<String, Long> statuses = new TreeMap<>();
+      method.statuses.forEach((code, count) -> statuses.put(code.name(), count.sum()));
+      out.printf("%n%s: %s, %d not sent (%s), %d messages received%n", entry.getKey().rpcName,
+          statuses, method.notSent.sum(), share(method.notSent.sum(), corrected.getTotalCount()),
+          method.messages.sum());
+      out.println("  latency ms    p50      p90      p99      p99.9    p99.99   max");
+      printPercentiles(out, "  from due   ", corrected);
+      printPercentiles(out, "  from send  ", method.uncorrected());
+    }
+  }
+
+  private static String share(long count, long total) {
+    return String.format("%.2f%%", total == 0 ? 0.0 : 100.0 * count / total);
+  }
+
+  private static void printPercentiles(PrintStream out, String label, Histogram histogram) {
+    out.print(label);
+    for (double percentile : new double[] {50, 90, 99, 99.9, 99.99}) {
+      out.printf(" %8.3f", histogram.getValueAtPercentile(percentile) / 1e6);
+    }
+    out.printf(" %8.3f%n", histogram.getMaxValue() / 1e6);
+  }
+
+  private void writeHistograms(Path path) throws IOException {
+    try (PrintStream out = new PrintStream(path.toFile(), "UTF-8")) {
+      HistogramLogWriter writer = new HistogramLogWriter(out);
+      writer.outputLogFormatVersion();
+      writer.outputLegend();
+      for (Map.Entry<Method, MethodStats> entry : stats.entrySet()) {
+        Histogram histogram = entry.getValue().corrected();
+        histogram.setTag(entry.getKey().rpcName);
+        writer.outputIntervalHistogram(histogram);
+      }
+    }
+    System.out.println("\nWrote histograms to " + path);
+  }
+
+  private String option(String name, String defaultValue) {
+    return options.getOrDefault(name, defaultValue);
+  }
+
+  /**
+   * Latency and outcomes of one method's measured requests.
+   */
+  private static final class MethodStats {
+
+    final Recorder fromDue = new Recorder(3);
+    final Recorder fromSend = new Recorder(3);
+    final Map<Status.Code, LongAdder> statuses = new ConcurrentHashMap<>();
+    final LongAdder messages = new LongAdder();
+    final LongAdder notSent = new LongAdder();
+    private Histogram corrected;
+    private Histogram uncorrected;
+
+    /**
+     * Records a due request that was not sent as one that failed after {@code deadlineNanos}.
+     */
+    void notSent(long deadlineNanos) {
+      fromDue.recordValue(deadlineNanos);
+      notSent.increment();
+    }
+
+    synchronized Histogram corrected() {
+      if (corrected == null) {
+        corrected = fromDue.getIntervalHistogram();
+      }
+      return corrected;
+    }
+
+    synchronized Histogram uncorrected() {
+      if (uncorrected == null) {
+        uncorrected = fromSend.getIntervalHistogram();
+      }
+      return uncorrected;
+    }
+  }
+
+  /**
+   * Records the outcome of one request when its response stream ends.
+   */
+  private final class Completion implements StreamObserver<Movie> {
+
+    private final MethodStats method;
+    private final long dueNanos;
+    private final long sentNanos;
+    private final boolean measured;
+    private int messages;
+
+    Completion(MethodStats method, long dueNanos, long sentNanos, boolean measured) {
+      this.method = method;
+      this.dueNanos = dueNanos;
+      this.sentNanos = sentNanos;
+      this.measured = measured;
+    }
+
+    @Override
+    public void onNext(Movie movie) {
+      messages++;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      complete(Status.fromThrowable(t).getCode());
+    }
+
+    @Override
+    public void onCompleted() {
+      complete(Status.Code.OK);
+    }
+
+    private void complete(Status.Code code) {
+      long now = System.nanoTime();
+      outstanding.decrementAndGet();
+      if (!measured) {
+        return;
+      }
+      method.fromDue.recordValue(now - dueNanos);
+      method.fromSend.recordValue(now - sentNanos);
+      method.statuses.computeIfAbsent(code, key -> new LongAdder()).increment();
+      method.messages.add(messages);
+    }
+  }
+}
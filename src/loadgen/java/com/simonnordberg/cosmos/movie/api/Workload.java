@@ -0,0 +1,167 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The requests a {@link LoadGenerator} sends, one after the other. Only ever used by the
+ * scheduling thread.
+ */
+abstract class Workload {
+
+  enum Method {
+    GET_MOVIE("GetMovie"),
+    GET_MOVIES("GetMovies");
+
+    final String rpcName;
+
+    Method(String rpcName) {
+      this.rpcName = rpcName;
+    }
+  }
+
+  /**
+   * One request: a {@code GetMovie} id or a {@code GetMovies} query.
+   */
+  static final class Request {
+
+    final Method method;
+    final String argument;
+    final int limit;
+
+    Request(Method method, String argument, int limit) {
+      this.method = method;
+      this.argument = argument;
+      this.limit = limit;
+    }
+  }
+
+  abstract Request next();
+
+  /**
+   * Replays the requests of a trace file in order, starting over at its end. Every line is
+   * {@code GetMovie<TAB>id} or {@code GetMovies<TAB>query}, optionally followed by
+   * {@code <TAB>limit}; blank lines and lines starting with {@code #} are skipped.
+   */
+  static Workload trace(Path path, int defaultLimit) throws IOException {
+    List<Request> requests = new ArrayList<>();
+    int lineNumber = 0;
+    for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+      lineNumber++;
+      if (line.isBlank() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\t");
+      if (fields.length < 2 || fields.length > 3) {
+        throw new IOException(path + ":" + lineNumber + ": expected 2 or 3 tab-separated fields");
+      }
+      Method method;
+      if (fields[0].equals(Method.GET_MOVIE.rpcName)) {
+        method = Method.GET_MOVIE;
+      } else if (fields[0].equals(Method.GET_MOVIES.rpcName)) {
+        method = Method.GET_MOVIES;
+      } else {
+        throw new IOException(path + ":" + lineNumber + ": unknown method " + fields[0]);
+      }
+      int limit = defaultLimit;
+      if (fields.length == 3) {
+        try {
+          limit = Integer.parseInt(fields[2]);
+        } catch (NumberFormatException e) {
+          throw new IOException(path + ":" + lineNumber + ": invalid limit " + fields[2], e);
+        }
+      }
+      requests.add(new Request(method, fields[1], limit));
+    }
+    if (requests.isEmpty()) {
+      throw new IOException(path + " holds no requests");
+    }
+    return new Workload() {
+      private int next;
+
+      @Override
+      Request next() {
+        Request request = requests.get(next);
+        next = (next + 1) % requests.size();
+        return request;
+      }
+    };
+  }
+
+  /**
+   * Synthesizes a skewed mix from {@code movies}: lookups of ids and searches for words of their
+   * titles, each drawn from a Zipf distribution with {@code exponent}, so a few ids and words are
+   * requested far more often than the rest. Words are ranked by how many titles hold them, which
+   * makes the most popular queries also the ones with the most matches.
+   *
+   * @param lookupRatio fraction of requests that are {@code GetMovie} lookups
+   */
+  static Workload zipf(List<Movie> movies, double exponent, double lookupRatio, int limit,
+      long seed) {
+    Random random = new Random(seed);
+    List<String> ids = new ArrayList<>(movies.size());
+    Map<String, Integer> titlesPerWord = new HashMap<>();
+    for (Movie movie : movies) {
+      ids.add(movie.getId());
+      Arrays.stream(movie.getName().toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+"))
+          .filter(word -> word.length() >= 3).distinct()
+          .forEach(word -> titlesPerWord.merge(word, 1, Integer::sum));
+    }
+    Collections.shuffle(ids, random);
+    List<String> words = new ArrayList<>(titlesPerWord.keySet());
+    words.sort(Comparator.<String, Integer>comparing(titlesPerWord::get, Comparator.reverseOrder())
+        .thenComparing(Comparator.naturalOrder()));
+    if (ids.isEmpty() || (words.isEmpty() && lookupRatio < 1)) {
+      throw new IllegalArgumentException("The catalog is too small to synthesize requests from");
+    }
+
+    ZipfSampler idRanks = new ZipfSampler(ids.size(), exponent);
+    ZipfSampler wordRanks = words.isEmpty() ? null : new ZipfSampler(words.size(), exponent);
+    return new Workload() {
+      @Override
+      Request next() {
+        if (wordRanks == null || random.nextDouble() < lookupRatio) {
+          return new Request(Method.GET_MOVIE, ids.get(idRanks.sample(random)), 0);
+        }
+        return new Request(Method.GET_MOVIES, words.get(wordRanks.sample(random)), limit);
+      }
+    };
+  }
+
+  /**
+   * Draws ranks in [0, n) with probability proportional to {@code 1 / (rank + 1)^exponent}.
+   */
+  private static final class ZipfSampler {
+
+    private final double[] cumulative;
+
+    ZipfSampler(int n, double exponent) {
+      cumulative = new double[n];
+      double sum = 0;
+      for (int i = 0; i < n; i++) {
+        sum += 1 / Math.pow(i + 1, exponent);
+        cumulative[i] = sum;
+      }
+      for (int i = 0; i < n; i++) {
+        cumulative[i] /= sum;
+      }
+    }
+
+    int sample(Random random) {
+      int index = Arrays.binarySearch(cumulative, random.nextDouble());
+      return Math.min(cumulative.length - 1, index >= 0 ? index : -index - 1);
+    }
+  }
+}
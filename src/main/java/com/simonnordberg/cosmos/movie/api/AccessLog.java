@@ -0,0 +1,181 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import io.grpc.Status;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous access log. Calls claim a slot in a fixed ring of pre-allocated entries and fill it
+ * in; a single writer thread formats published entries as JSON lines into a reusable buffer and
+ * writes them out. Recording never blocks or allocates: when the ring is full the entry is dropped
+ * and counted.
+ */
+final class AccessLog implements AutoCloseable, MetricsSource {
+
+  private static final Logger logger = Logger.getLogger(AccessLog.class.getName());
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private final Entry[] ring;
+  private final int mask;
+  private final AtomicLong claimed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final WritableByteChannel channel;
+  private final boolean closeChannel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+  private final StringBuilder line = new StringBuilder(256);
+  private final Thread writer;
+  private volatile long consumed;
+  private volatile boolean closed;
+
+  /**
+   * @param capacity number of entries that may be waiting to be written, rounded up to a power of
+   *     two
+   * @param closeChannel whether {@link #close} closes {@code channel}
+   */
+  AccessLog(WritableByteChannel channel, int capacity, boolean closeChannel) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.ring = new Entry[size];
+    for (int i = 0; i < size; i++) {
+      ring[i] = new Entry();
+      ring[i].sequence = i - size;
+    }
+    this.mask = size - 1;
+    this.channel = channel;
+    this.closeChannel = closeChannel;
+    this.writer = new Thread(this::drain, "access-log-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Opens an access log appending to {@code target}, or to standard output for {@code "-"}.
+   * Standard output stays open when the log is closed, since the process still writes to it.
+   */
+  static AccessLog open(String target, int capacity) throws IOException {
+    if (target.equals("-")) {
+      return new AccessLog(new FileOutputStream(FileDescriptor.out).getChannel(), capacity, false);
+    }
+    return new AccessLog(FileChannel.open(Path.of(target), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND), capacity, true);
+  }
+
+  long dropped() {
+    return dropped.get();
+  }
+
+  @Override
+  public void writeMetrics(StringBuilder out) {
+    MetricsSource.counter(out, "movie_access_log_dropped_total",
+        "Access log entries dropped because the ring buffer was full.", dropped.get());
+  }
+
+  void append(String method, Status.Code status, long latencyNanos, int responses,
+      SocketAddress peer) {
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - consumed >= ring.length) {
+        dropped.incrementAndGet();
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+    Entry entry = ring[(int) sequence & mask];
+    entry.timestampMillis = System.currentTimeMillis();
+    entry.method = method;
+    entry.status = status;
+    entry.latencyNanos = latencyNanos;
+    entry.responses = responses;
+    entry.peer = peer;
+    entry.sequence = sequence;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (closeChannel) {
+      channel.close();
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      long next = consumed;
+      Entry entry = ring[(int) next & mask];
+      if (entry.sequence == next) {
+        format(entry);
+        entry.method = null;
+        entry.peer = null;
+        consumed = next + 1;
+        continue;
+      }
+      flush();
+      if (closed && claimed.get() == next) {
+        return;
+      }
+      LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+    }
+  }
+
+  private void format(Entry entry) {
+    line.setLength(0);
+    line.append("{\"ts\":").append(entry.timestampMillis)
+        .append(",\"method\":\"").append(entry.method)
+        .append("\",\"status\":\"").append(entry.status.name())
+        .append("\",\"latency_us\":").append(TimeUnit.NANOSECONDS.toMicros(entry.latencyNanos))
+        .append(",\"responses\":").append(entry.responses);
+    if (entry.peer != null) {
+      line.append(",\"peer\":\"").append(entry.peer).append('"');
+    }
+    line.append("}\n");
+
+    if (buffer.remaining() < line.length()) {
+      flush();
+    }
+    for (int i = 0; i < line.length() && buffer.hasRemaining(); i++) {
+      char c = line.charAt(i);
+      buffer.put(c < 0x80 && c != '\\' ? (byte) c : (byte) '?');
+    }
+  }
+
+  private void flush() {
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to write access log", e);
+    }
+    buffer.clear();
+  }
+
+  private static final class Entry {
+
+    volatile long sequence;
+    long timestampMillis;
+    String method;
+    Status.Code status;
+    long latencyNanos;
+    int responses;
+    SocketAddress peer;
+  }
+}
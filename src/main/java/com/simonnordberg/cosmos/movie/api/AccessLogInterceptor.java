@@ -0,0 +1,84 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCall.Listener;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Records a sample of calls in the {@link AccessLog} when they complete, with their final status,
+ * latency and number of responses. Calls that are not sampled pass through untouched.
+ */
+final class AccessLogInterceptor implements ServerInterceptor {
+
+  private final AccessLog accessLog;
+  private final double sampleRate;
+
+  /**
+   * @param sampleRate fraction of calls to record, between 0 and 1
+   */
+  AccessLogInterceptor(AccessLog accessLog, double sampleRate) {
+    this.accessLog = accessLog;
+    this.sampleRate = sampleRate;
+  }
+
+  @Override
+  public <ReqT, RespT> Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> serverCall,
+      Metadata metadata, ServerCallHandler<ReqT, RespT> next) {
+    if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+      return next.startCall(serverCall, metadata);
+    }
+
+    LoggedCall<ReqT, RespT> call = new LoggedCall<>(serverCall);
+    return new SimpleForwardingServerCallListener<>(next.startCall(call, metadata)) {
+      @Override
+      public void onCancel() {
+        call.complete(Status.Code.CANCELLED);
+        super.onCancel();
+      }
+    };
+  }
+
+  private final class LoggedCall<ReqT, RespT> extends SimpleForwardingServerCall<ReqT, RespT> {
+
+    private final long startNanos = System.nanoTime();
+    private int responses;
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    LoggedCall(ServerCall<ReqT, RespT> delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public void sendMessage(RespT message) {
+      responses++;
+      super.sendMessage(message);
+    }
+
+    @Override
+    public void close(Status status, Metadata trailers) {
+      complete(status.getCode());
+      super.close(status, trailers);
+    }
+
+    /**
+     * Logs the call once, whichever of {@code close} and {@code onCancel} comes first; they run on
+     * different threads.
+     */
+    void complete(Status.Code status) {
+      if (!completed.compareAndSet(false, true)) {
+        return;
+      }
+      accessLog.append(getMethodDescriptor().getFullMethodName(), status,
+          System.nanoTime() - startNanos, responses,
+          getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR));
+    }
+  }
+}
@@ -0,0 +1,271 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Secondary indexes over the structured movie fields, used to filter and order search results.
+ *
+ * <p>Years are kept as catalog positions sorted by year next to the sorted years themselves, so a
+ * year range is two binary searches and a contiguous run of positions. Every decade also has a
+ * bitset over catalog positions, so a wide range is the union of the decades it covers, and only
+ * the two decades it cuts are walked, at most half of each. Every genre has a bitset over catalog
+ * positions, and a filter is the intersection of the year range with the union of the requested
+ * genres. Popularity order is a rank per catalog position, so a result set is sorted by sorting its
+ * ranks. All of it is primitive arrays; nothing is boxed and the catalog is never scanned per
+ * request.
+ */
+final class AttributeIndex {
+
+  private final int size;
+  private final int[] years;
+  private final int[] byYear;
+  private final int firstDecade;
+  private final int[] decadeStarts;
+  private final BitSet[] decades;
+  private final Map<String, BitSet> genres;
+  private final int[] byPopularity;
+  private final int[] popularityRank;
+  private final float[] popularity;
+
+  /**
+   * @param years release year by catalog position, 0 if unknown
+   * @param genres genres by catalog position
+   * @param popularity popularity by catalog position, higher first
+   */
+  AttributeIndex(int[] years, String[][] genres, float[] popularity) {
+    this.size = years.length;
+    this.popularity = popularity;
+
+    long[] yearKeys = new long[size];
+    for (int i = 0; i < size; i++) {
+      yearKeys[i] = (long) years[i] << 32 | i;
+    }
+    Arrays.sort(yearKeys);
+    this.years = new int[size];
+    this.byYear = new int[size];
+    for (int i = 0; i < size; i++) {
+      this.years[i] = (int) (yearKeys[i] >> 32);
+      byYear[i] = (int) yearKeys[i];
+    }
+
+    // Decades are numbered from the first one with a known year; movies without a year have none.
+    int known = lowerBound(1);
+    this.firstDecade = known == size ? 0 : this.years[known] / 10;
+    int decadeCount = known == size ? 0 : this.years[size - 1] / 10 - firstDecade + 1;
+    this.decadeStarts = new int[decadeCount + 1];
+    this.decades = new BitSet[decadeCount];
+    for (int decade = 0; decade <= decadeCount; decade++) {
+      decadeStarts[decade] = lowerBound((firstDecade + decade) * 10);
+    }
+    for (int i = known; i < size; i++) {
+      int decade = this.years[i] / 10 - firstDecade;
+      if (decades[decade] == null) {
+        decades[decade] = new BitSet(size);
+      }
+      decades[decade].set(byYear[i]);
+    }
+
+    this.genres = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      for (String genre : genres[i]) {
+        this.genres.computeIfAbsent(normalizeGenre(genre), g -> new BitSet(size)).set(i);
+      }
+    }
+
+    long[] popularityKeys = new long[size];
+    for (int i = 0; i < size; i++) {
+      popularityKeys[i] = descendingKey(popularity[i], i);
+    }
+    Arrays.sort(popularityKeys);
+    this.byPopularity = new int[size];
+    this.popularityRank = new int[size];
+    for (int rank = 0; rank < size; rank++) {
+      int position = (int) popularityKeys[rank];
+      byPopularity[rank] = position;
+      popularityRank[position] = rank;
+    }
+  }
+
+  /**
+   * Returns the catalog positions matching the year range and genres, or {@code null} when the
+   * filter matches everything. The result may be one of the index's own bitsets and must not be
+   * modified.
+   *
+   * @param minYear first year to include, or 0 for no lower bound
+   * @param maxYear last year to include, or 0 for no upper bound
+   * @param genres genres of which a movie must have at least one; empty for any
+   */
+  BitSet filter(int minYear, int maxYear, Collection<String> genres) {
+    BitSet union = null;
+    boolean copied = false;
+    for (String genre : genres) {
+      BitSet movies = this.genres.get(normalizeGenre(genre));
+      if (movies == null) {
+        continue;
+      }
+      if (union == null) {
+        union = movies;
+      } else {
+        if (!copied) {
+          union = (BitSet) union.clone();
+          copied = true;
+        }
+        union.or(movies);
+      }
+    }
+    if (union == null && !genres.isEmpty()) {
+      return new BitSet();
+    }
+    if (minYear == 0 && maxYear == 0) {
+      return union;
+    }
+    return yearRange(minYear, maxYear, union);
+  }
+
+  /**
+   * Returns the catalog positions released within the year range, intersected with
+   * {@code within} if it is not {@code null}. Decades the range covers are taken from their
+   * bitsets. Of a decade the range cuts, whichever is shorter is walked: the years inside the
+   * range, or the years outside it after taking the whole decade.
+   */
+  private BitSet yearRange(int minYear, int maxYear, BitSet within) {
+    // Movies without a year are stored as year 0 and never match a year range.
+    int from = lowerBound(Math.max(minYear, 1));
+    int to = maxYear == 0 ? size : lowerBound(maxYear + 1);
+    if (from >= to) {
+      return new BitSet();
+    }
+    int decade = years[from] / 10 - firstDecade;
+    if (within == null && from == decadeStarts[decade] && to == decadeStarts[decade + 1]) {
+      return decades[decade];
+    }
+    BitSet matches = new BitSet(size);
+    while (from < to) {
+      decade = years[from] / 10 - firstDecade;
+      int start = decadeStarts[decade];
+      int end = decadeStarts[decade + 1];
+      int stop = Math.min(end, to);
+      if ((stop - from) * 2 > end - start) {
+        matches.or(decades[decade]);
+        for (int i = start; i < from; i++) {
+          matches.clear(byYear[i]);
+        }
+        for (int i = stop; i < end; i++) {
+          matches.clear(byYear[i]);
+        }
+      } else {
+        for (int i = from; i < stop; i++) {
+          matches.set(byYear[i]);
+        }
+      }
+      from = stop;
+    }
+    if (within != null) {
+      matches.and(within);
+    }
+    return matches;
+  }
+
+  /**
+   * Returns the positions of {@code positions} that are set in {@code filter}, keeping their
+   * order.
+   */
+  static int[] retain(int[] positions, BitSet filter) {
+    int[] retained = new int[positions.length];
+    int count = 0;
+    for (int position : positions) {
+      if (filter.get(position)) {
+        retained[count++] = position;
+      }
+    }
+    return count == positions.length ? positions : Arrays.copyOf(retained, count);
+  }
+
+  /**
+   * Returns a copy of {@code positions} ordered by popularity, most popular first.
+   */
+  int[] sortByPopularity(int[] positions) {
+    int[] sorted = new int[positions.length];
+    for (int i = 0; i < positions.length; i++) {
+      sorted[i] = popularityRank[positions[i]];
+    }
+    Arrays.sort(sorted);
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = byPopularity[sorted[i]];
+    }
+    return sorted;
+  }
+
+  /**
+   * Like {@link Arrays#binarySearch(int[], int)}, but for positions ordered by
+   * {@link #sortByPopularity}.
+   */
+  int popularitySearch(int[] sorted, int position) {
+    int rank = popularityRank[position];
+    int lo = 0;
+    int hi = sorted.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int midRank = popularityRank[sorted[mid]];
+      if (midRank < rank) {
+        lo = mid + 1;
+      } else if (midRank > rank) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(lo + 1);
+  }
+
+  private int lowerBound(int year) {
+    int lo = 0;
+    int hi = size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (years[mid] < year) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  float popularity(int position) {
+    return popularity[position];
+  }
+
+  /**
+   * Returns a key whose natural order is by {@code value}, highest first, then by
+   * {@code position}.
+   */
+  static long descendingKey(float value, int position) {
+    return (long) ~sortableBits(value) << 32 | position;
+  }
+
+  /**
+   * Returns the value a key made by {@link #descendingKey} was made from.
+   */
+  static float descendingValue(long key) {
+    int bits = ~(int) (key >> 32);
+    return Float.intBitsToFloat(bits >= 0 ? bits : bits ^ Integer.MAX_VALUE);
+  }
+
+  /**
+   * Maps a float to an int whose signed order matches the float's order.
+   */
+  private static int sortableBits(float value) {
+    int bits = Float.floatToIntBits(value);
+    return bits >= 0 ? bits : bits ^ Integer.MAX_VALUE;
+  }
+
+  private static String normalizeGenre(String genre) {
+    return genre.trim().toLowerCase(Locale.ROOT);
+  }
+}
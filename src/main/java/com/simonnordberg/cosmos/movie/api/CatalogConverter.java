@@ -0,0 +1,146 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.util.JsonFormat;
+import com.simonnordberg.cosmos.api.Movie;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts a CSV or JSON Lines movie list into a {@link CatalogSnapshot}.
+ *
+ * <pre>
+ *   java -cp movie-service-jar-with-dependencies.jar \
+ *       com.simonnordberg.cosmos.movie.api.CatalogConverter movies.csv catalog.bin
+ * </pre>
+ * CSV input has the columns {@code id,name}, optionally followed by
+ * {@code year,genres,runtime_minutes,popularity} with genres separated by {@code |}, and
+ * optionally preceded by a header line starting with {@code id,name}, with double-quoted fields
+ * where needed. JSON Lines input has one {@code Movie} object per line in the protobuf JSON
+ * mapping, e.g. {@code {"id": "...", "name": "...", "year": 1958, "genres": ["Thriller"]}}.
+ * Movies without a year get the one in a trailing {@code (yyyy)} of their name, if any.
+ */
+public class CatalogConverter {
+
+  private static final Pattern YEAR_IN_NAME = Pattern.compile("\\((\\d{4})\\)\\s*$");
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: CatalogConverter <input.csv|input.jsonl> <output>");
+      System.exit(2);
+    }
+    Path input = Path.of(args[0]);
+    Path output = Path.of(args[1]);
+
+    List<Movie> movies = read(input);
+    CatalogSnapshot.write(movies, output);
+    System.out.println("Wrote " + movies.size() + " movies to " + output);
+  }
+
+  static List<Movie> read(Path input) throws IOException {
+    boolean json = input.getFileName().toString().endsWith(".jsonl")
+        || input.getFileName().toString().endsWith(".json");
+    List<Movie> movies = new ArrayList<>();
+    JsonFormat.Parser parser = JsonFormat.parser().ignoringUnknownFields();
+    try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+      int lineNumber = 0;
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        lineNumber++;
+        if (line.isBlank() || (!json && lineNumber == 1 && line.trim().startsWith("id,name"))) {
+          continue;
+        }
+        Movie.Builder movie = Movie.newBuilder();
+        if (json) {
+          parser.merge(line, movie);
+        } else {
+          List<String> fields = parseCsvLine(line);
+          if (fields.size() != 2 && fields.size() != 6) {
+            throw new IOException(input + ":" + lineNumber + ": expected 2 or 6 fields, got "
+                + fields.size());
+          }
+          movie.setId(fields.get(0)).setName(fields.get(1));
+          if (fields.size() == 6) {
+            try {
+              parseAttributes(fields, movie);
+            } catch (NumberFormatException e) {
+              throw new IOException(input + ":" + lineNumber + ": " + e.getMessage(), e);
+            }
+          }
+        }
+        movies.add(withYearFromName(movie.build()));
+      }
+    }
+    return movies;
+  }
+
+  private static void parseAttributes(List<String> fields, Movie.Builder movie) {
+    if (!fields.get(2).isBlank()) {
+      movie.setYear(Integer.parseInt(fields.get(2).trim()));
+    }
+    for (String genre : fields.get(3).split("\\|")) {
+      if (!genre.isBlank()) {
+        movie.addGenres(genre.trim());
+      }
+    }
+    if (!fields.get(4).isBlank()) {
+      movie.setRuntimeMinutes(Integer.parseInt(fields.get(4).trim()));
+    }
+    if (!fields.get(5).isBlank()) {
+      movie.setPopularity(Float.parseFloat(fields.get(5).trim()));
+    }
+  }
+
+  static List<Movie> withYearsFromNames(List<Movie> movies) {
+    List<Movie> result = new ArrayList<>(movies.size());
+    for (Movie movie : movies) {
+      result.add(withYearFromName(movie));
+    }
+    return result;
+  }
+
+  /**
+   * Returns {@code movie} with its year taken from a trailing {@code (yyyy)} in its name, as in
+   * "Vertigo (1958)", unless it already has a year or its name has none.
+   */
+  static Movie withYearFromName(Movie movie) {
+    Matcher matcher = YEAR_IN_NAME.matcher(movie.getName());
+    if (movie.getYear() != 0 || !matcher.find()) {
+      return movie;
+    }
+    return movie.toBuilder().setYear(Integer.parseInt(matcher.group(1))).build();
+  }
+
+  private static List<String> parseCsvLine(String line) {
+    List<String> fields = new ArrayList<>(2);
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+}
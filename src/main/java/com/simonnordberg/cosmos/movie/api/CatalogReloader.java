@@ -0,0 +1,184 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a {@link MovieCatalog} in sync with a snapshot file. The file's directory is watched on a
+ * dedicated thread; when the file changes a new catalog is opened on that thread and published
+ * through a volatile reference. Calls read the reference once, so a call that is already running
+ * finishes on the catalog it started with.
+ *
+ * <p>Since the old and new catalogs are both live during a reload, a reload is skipped when its
+ * estimated heap use exceeds the configured budget or the free heap.
+ *
+ * <p>The snapshot is memory-mapped, so it must only be replaced by renaming a complete file over
+ * it, as {@link CatalogSnapshot#write} does. Rewriting it in place, e.g. with {@code cp}, changes
+ * the pages under the catalog being served: calls may read garbage records or fail with an
+ * {@link InternalError} where the file was truncated. A file that was changed but kept its
+ * identity (its inode) was rewritten in place; it is not reloaded, and the error is logged.
+ */
+final class CatalogReloader implements Supplier<MovieCatalog>, AutoCloseable, MetricsSource {
+
+  private static final Logger logger = Logger.getLogger(CatalogReloader.class.getName());
+  private static final long SETTLE_MILLIS = 500;
+
+  private final Path path;
+  private final long budgetBytes;
+  private final WatchService watchService;
+  private final Thread thread;
+  private final AtomicLong reloads = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile MovieCatalog catalog;
+  // File key of the mapped snapshot; only used by the watcher thread after construction.
+  private Object mappedFile;
+  private volatile long lastReloadNanos;
+  private volatile Runnable reloadListener = () -> {
+  };
+
+  /**
+   * @param budgetBytes the most heap a reload may take while the previous catalog is still live,
+   *     or 0 to only be bounded by the free heap
+   */
+  CatalogReloader(Path path, long budgetBytes) throws IOException {
+    this.path = path.toAbsolutePath();
+    this.budgetBytes = budgetBytes;
+    this.mappedFile = fileKey(this.path);
+    this.catalog = MovieCatalog.open(this.path, 1);
+    this.watchService = FileSystems.getDefault().newWatchService();
+    this.path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+    this.thread = new Thread(this::watch, "catalog-reloader");
+    this.thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  @Override
+  public MovieCatalog get() {
+    return catalog;
+  }
+
+  /**
+   * Sets the listener run on the watcher thread after every reload that published a new catalog.
+   */
+  void setReloadListener(Runnable listener) {
+    this.reloadListener = listener;
+  }
+
+  long reloads() {
+    return reloads.get();
+  }
+
+  long failures() {
+    return failures.get();
+  }
+
+  long lastReloadNanos() {
+    return lastReloadNanos;
+  }
+
+  @Override
+  public void writeMetrics(StringBuilder out) {
+    MetricsSource.counter(out, "movie_catalog_reloads_total", "Successful catalog reloads.",
+        reloads.get());
+    MetricsSource.counter(out, "movie_catalog_reload_failures_total",
+        "Catalog reloads that failed or were skipped for lack of heap.", failures.get());
+    MetricsSource.gauge(out, "movie_catalog_last_reload_seconds",
+        "Duration of the last successful catalog reload.",
+        lastReloadNanos / (double) TimeUnit.SECONDS.toNanos(1));
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        boolean changed = drain(key);
+        // Writers usually produce a burst of events; wait for the file to settle.
+        while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+          changed |= drain(key);
+        }
+        if (changed) {
+          reload();
+        }
+      }
+    } catch (ClosedWatchServiceException | InterruptedException e) {
+      logger.fine("Catalog watcher stopped");
+    }
+  }
+
+  /**
+   * Returns the identity of the file at {@code path}, or {@code null} if the file system has none.
+   * It is read before the file is opened, so a rename in between causes a redundant reload rather
+   * than a missed one.
+   */
+  private static Object fileKey(Path path) throws IOException {
+    return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+  }
+
+  private boolean drain(WatchKey key) {
+    boolean changed = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+          || path.getFileName().equals(event.context());
+    }
+    key.reset();
+    return changed;
+  }
+
+  private void reload() {
+    try {
+      Object file = fileKey(path);
+      if (file != null && file.equals(mappedFile)) {
+        failures.incrementAndGet();
+        logger.severe("Catalog " + path + " was rewritten in place and is not reloaded; replace it"
+            + " by renaming a complete file over it. The catalog being served maps the same file"
+            + " and may return damaged records until the server restarts.");
+        return;
+      }
+      long required = MovieCatalog.estimateHeapBytes(path);
+      Runtime runtime = Runtime.getRuntime();
+      long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+      long allowed = budgetBytes > 0 ? Math.min(budgetBytes, free) : free;
+      if (required > allowed) {
+        failures.incrementAndGet();
+        logger.warning("Skipping catalog reload of " + path + ": needs about " + required
+            + " bytes of heap, " + allowed + " available");
+        return;
+      }
+
+      long start = System.nanoTime();
+      MovieCatalog next = MovieCatalog.open(path, catalog.version() + 1);
+      catalog = next;
+      mappedFile = file;
+      lastReloadNanos = System.nanoTime() - start;
+      reloads.incrementAndGet();
+      logger.info("Reloaded catalog version " + next.version() + " with " + next.size()
+          + " movies in " + TimeUnit.NANOSECONDS.toMillis(lastReloadNanos) + " ms");
+      reloadListener.run();
+    } catch (IOException | RuntimeException e) {
+      failures.incrementAndGet();
+      logger.log(Level.WARNING, "Failed to reload catalog from " + path, e);
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+import com.simonnordberg.cosmos.api.Movie;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Memory-mapped, read-only catalog file. Records stay off-heap and are decoded on access.
+ *
+ * <p>Layout, big-endian:
+ * <pre>
+ *   header   int magic ("MOVC"), int version, int count, int reserved
+ *   offsets  count x int, absolute file offset of each record
+ *   records  count x (int length, length bytes of the Movie protobuf encoding)
+ * </pre>
+ * The protobuf encoding keeps the fields in {@code Movie} field order as length-prefixed UTF-8,
+ * so a record can be handed to the transport as is. Files are limited to 2 GB.
+ */
+final class CatalogSnapshot implements MovieRecords {
+
+  static final int MAGIC = 0x4D4F5643;
+  static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+
+  private final ByteBuffer buffer;
+  private final int count;
+
+  private CatalogSnapshot(ByteBuffer buffer, int count) {
+    this.buffer = buffer;
+    this.count = count;
+  }
+
+  /**
+   * Maps {@code path} into memory. The header and the offset and length of every record are
+   * checked against the size of the file, so that a truncated or corrupt file fails here rather
+   * than in the calls reading it; records are not decoded.
+   */
+  static CatalogSnapshot open(Path path) throws IOException {
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Catalog snapshot " + path + " is larger than 2 GB");
+      }
+      buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException(path + " is not a catalog snapshot");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Unsupported version " + buffer.getInt(4) + " of catalog snapshot "
+          + path);
+    }
+    int count = buffer.getInt(8);
+    long recordsStart = HEADER_SIZE + (long) count * Integer.BYTES;
+    if (count < 0 || recordsStart > buffer.capacity()) {
+      throw new IOException("Truncated catalog snapshot " + path + ": header claims " + count
+          + " records");
+    }
+    for (int i = 0; i < count; i++) {
+      int offset = buffer.getInt(HEADER_SIZE + Integer.BYTES * i);
+      if (offset < recordsStart || (long) offset + Integer.BYTES > buffer.capacity()) {
+        throw new IOException("Corrupt catalog snapshot " + path + ": record " + i
+            + " starts at " + offset + ", outside the records section");
+      }
+      int length = buffer.getInt(offset);
+      if (length < 0 || (long) offset + Integer.BYTES + length > buffer.capacity()) {
+        throw new IOException("Corrupt catalog snapshot " + path + ": record " + i + " of "
+            + length + " bytes at " + offset + " ends past the end of the file");
+      }
+    }
+    return new CatalogSnapshot(buffer, count);
+  }
+
+  /**
+   * Writes {@code movies} to {@code path}, replacing it atomically once complete and durable.
+   */
+  static void write(List<Movie> movies, Path path) throws IOException {
+    Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), "catalog", ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(movies.size());
+        out.writeInt(0);
+
+        long offset = HEADER_SIZE + (long) movies.size() * Integer.BYTES;
+        for (Movie movie : movies) {
+          if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Catalog snapshot would be larger than 2 GB");
+          }
+          out.writeInt((int) offset);
+          offset += Integer.BYTES + movie.getSerializedSize();
+        }
+        for (Movie movie : movies) {
+          out.writeInt(movie.getSerializedSize());
+          movie.writeTo(out);
+        }
+      }
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  @Override
+  public int size() {
+    return count;
+  }
+
+  @Override
+  public Movie get(int index) {
+    try {
+      return Movie.parseFrom(record(index));
+    } catch (InvalidProtocolBufferException e) {
+      throw new UncheckedIOException("Corrupt catalog record " + index, e);
+    }
+  }
+
+  @Override
+  public ByteString encoded(int index) {
+    return UnsafeByteOperations.unsafeWrap(record(index));
+  }
+
+  private ByteBuffer record(int index) {
+    Objects.checkIndex(index, count);
+    int offset = buffer.getInt(HEADER_SIZE + Integer.BYTES * index);
+    int length = buffer.getInt(offset);
+    return buffer.slice(offset + Integer.BYTES, length);
+  }
+}
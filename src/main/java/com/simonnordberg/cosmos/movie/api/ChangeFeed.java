@@ -0,0 +1,389 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.simonnordberg.cosmos.api.CatalogChange;
+import com.simonnordberg.cosmos.api.Movie;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Streams the catalog and its changes to {@code WatchCatalog} subscribers.
+ *
+ * <p>Every committed batch is encoded into a {@code CatalogChange} once, and the same bytes are
+ * queued to every subscriber and sent through {@link EncodedMessageMarshaller}, so a change costs
+ * one encoding however many replicas follow the catalog. The most recent changes are kept, so a
+ * client that reconnects with the version of its replica only receives what it missed.
+ *
+ * <p>Subscribers are written to only while their transport is ready, from whichever thread has
+ * work for them: the publishing thread or the call's on-ready handler. A subscriber's queue is
+ * bounded; when it overflows, the queued changes are dropped and the subscriber is sent a fresh
+ * snapshot instead, so a slow client never holds back the writer or grows the heap. Snapshots are
+ * sent in chunks of about {@value #SNAPSHOT_CHUNK_BYTES} bytes built from the catalog's encoded
+ * movies, and also when a client resumes from a version that is no longer kept or the catalog was
+ * replaced by a reload.
+ */
+final class ChangeFeed implements MetricsSource {
+
+  static final int SNAPSHOT_CHUNK_BYTES = 64 * 1024;
+  static final int DEFAULT_HISTORY_SIZE = 4096;
+  static final int DEFAULT_BUFFER_SIZE = 1024;
+
+  private final Supplier<MovieCatalog> catalogs;
+  private final int historySize;
+  private final int bufferSize;
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong snapshots = new AtomicLong();
+  private final AtomicLong overflows = new AtomicLong();
+  // Guarded by this.
+  private final ArrayDeque<Change> history = new ArrayDeque<>();
+  private final List<Subscriber<?>> subscribers = new ArrayList<>();
+  private long lastVersion;
+  private boolean closed;
+
+  /**
+   * @param historySize number of recent changes kept for clients that resume
+   * @param bufferSize number of changes queued for a subscriber before it is resynced
+   */
+  ChangeFeed(Supplier<MovieCatalog> catalogs, int historySize, int bufferSize) {
+    this.catalogs = catalogs;
+    this.historySize = Math.max(0, historySize);
+    this.bufferSize = Math.max(1, bufferSize);
+    this.lastVersion = catalogs.get().version();
+  }
+
+  /**
+   * Sends a batch of changes to all subscribers. Batches must be published in order, by one
+   * thread at a time, after the catalog at {@code version} has been published.
+   *
+   * @param changes ids of the changed movies mapped to their new contents, or to {@code null} if
+   *     they were removed
+   */
+  void publish(long previousVersion, long version, Map<String, Movie> changes) {
+    CatalogChange.Builder builder = CatalogChange.newBuilder().setVersion(version);
+    changes.forEach((id, movie) -> {
+      if (movie != null) {
+        builder.addUpserts(movie);
+      } else {
+        builder.addDeletedIds(id);
+      }
+    });
+    Change change = new Change(previousVersion, version, builder.build().toByteString());
+
+    Subscriber<?>[] targets;
+    synchronized (this) {
+      history.addLast(change);
+      while (history.size() > historySize) {
+        history.removeFirst();
+      }
+      lastVersion = version;
+      targets = subscribers.toArray(new Subscriber<?>[0]);
+    }
+    published.incrementAndGet();
+    for (Subscriber<?> subscriber : targets) {
+      subscriber.offer(change);
+    }
+  }
+
+  /**
+   * Sends every subscriber a snapshot of the current catalog, which was replaced as a whole.
+   */
+  void resync() {
+    Subscriber<?>[] targets;
+    synchronized (this) {
+      history.clear();
+      lastVersion = catalogs.get().version();
+      targets = subscribers.toArray(new Subscriber<?>[0]);
+    }
+    for (Subscriber<?> subscriber : targets) {
+      subscriber.resync();
+    }
+  }
+
+  /**
+   * Starts streaming to {@code call}, from the changes after {@code fromVersion} if they are
+   * still kept and from a snapshot otherwise. Must be called from the call's service method.
+   *
+   * @param decode turns encoded {@code CatalogChange}s into the messages of the call
+   */
+  <T> void subscribe(long fromVersion, ServerCallStreamObserver<T> call,
+      Function<ByteString, T> decode) {
+    Subscriber<T> subscriber = new Subscriber<>(call, decode);
+    call.setOnCancelHandler(subscriber::cancel);
+    call.setOnReadyHandler(subscriber::drain);
+    synchronized (this) {
+      if (closed) {
+        call.onError(Status.UNAVAILABLE.withDescription("Server is shutting down")
+            .asRuntimeException());
+        return;
+      }
+      subscribers.add(subscriber);
+      List<Change> missed = missedSince(fromVersion);
+      if (missed == null || missed.size() > bufferSize) {
+        subscriber.resync = true;
+      } else {
+        subscriber.version = fromVersion;
+        subscriber.queue.addAll(missed);
+      }
+    }
+    subscriber.drain();
+  }
+
+  /**
+   * Ends all streams, for a server that is shutting down.
+   */
+  void close() {
+    Subscriber<?>[] targets;
+    synchronized (this) {
+      closed = true;
+      targets = subscribers.toArray(new Subscriber<?>[0]);
+    }
+    for (Subscriber<?> subscriber : targets) {
+      subscriber.complete();
+    }
+  }
+
+  @Override
+  public void writeMetrics(StringBuilder out) {
+    int count;
+    synchronized (this) {
+      count = subscribers.size();
+    }
+    MetricsSource.gauge(out, "movie_watch_subscribers", "Open WatchCatalog streams.", count);
+    MetricsSource.counter(out, "movie_watch_changes_total",
+        "Catalog changes published to WatchCatalog streams.", published.get());
+    MetricsSource.counter(out, "movie_watch_snapshots_total",
+        "Catalog snapshots sent to WatchCatalog streams.", snapshots.get());
+    MetricsSource.counter(out, "movie_watch_overflows_total",
+        "WatchCatalog streams resynced because they fell too far behind.", overflows.get());
+  }
+
+  /**
+   * Decodes a change for calls bound with the generated marshaller.
+   */
+  static CatalogChange parse(ByteString encoded) {
+    try {
+      return CatalogChange.parseFrom(encoded);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("Change feed encoded an invalid message", e);
+    }
+  }
+
+  /**
+   * Returns the changes after {@code version}, or {@code null} if they are not all kept.
+   */
+  private List<Change> missedSince(long version) {
+    if (version <= 0) {
+      return null;
+    }
+    List<Change> missed = new ArrayList<>();
+    if (version == lastVersion) {
+      return missed;
+    }
+    boolean found = false;
+    for (Change change : history) {
+      if (found) {
+        missed.add(change);
+      } else if (change.previousVersion == version) {
+        found = true;
+        missed.add(change);
+      }
+    }
+    return found ? missed : null;
+  }
+
+  private synchronized void remove(Subscriber<?> subscriber) {
+    subscribers.remove(subscriber);
+  }
+
+  /**
+   * Encodes the live movies of {@code catalog} in [{@code from}, {@code to}) as a snapshot chunk,
+   * copying their encoded bytes. The result is what encoding a {@code CatalogChange} holding them
+   * would produce.
+   */
+  static ByteString encodeChunk(long version, MovieCatalog catalog, int from, int to,
+      boolean first, boolean last) {
+    ByteString.Output output = ByteString.newOutput(SNAPSHOT_CHUNK_BYTES + 1024);
+    CodedOutputStream coded = CodedOutputStream.newInstance(output);
+    try {
+      if (version != 0) {
+        coded.writeInt64(CatalogChange.VERSION_FIELD_NUMBER, version);
+      }
+      for (int i = from; i < to; i++) {
+        if (catalog.isLive(i)) {
+          coded.writeBytes(CatalogChange.UPSERTS_FIELD_NUMBER, catalog.serialized(i));
+        }
+      }
+      if (first) {
+        coded.writeBool(CatalogChange.RESET_FIELD_NUMBER, true);
+      }
+      if (last) {
+        coded.writeBool(CatalogChange.SNAPSHOT_END_FIELD_NUMBER, true);
+      }
+      coded.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return output.toByteString();
+  }
+
+  private static final class Change {
+
+    final long previousVersion;
+    final long version;
+    final ByteString encoded;
+
+    Change(long previousVersion, long version, ByteString encoded) {
+      this.previousVersion = previousVersion;
+      this.version = version;
+      this.encoded = encoded;
+    }
+  }
+
+  /**
+   * One {@code WatchCatalog} call. Whoever finds work for it calls {@link #drain}; the first
+   * caller drains and later ones only make it go around once more, so writes to the call are
+   * serialized without a thread of its own.
+   */
+  private final class Subscriber<T> {
+
+    private final ServerCallStreamObserver<T> call;
+    private final Function<ByteString, T> decode;
+    private final AtomicInteger pending = new AtomicInteger();
+    // Guarded by this.
+    private final ArrayDeque<Change> queue = new ArrayDeque<>();
+    private boolean resync;
+    // Owned by the draining thread.
+    private long version;
+    private MovieCatalog snapshot;
+    private int snapshotNext;
+    private volatile boolean completing;
+    private volatile boolean done;
+
+    Subscriber(ServerCallStreamObserver<T> call, Function<ByteString, T> decode) {
+      this.call = call;
+      this.decode = decode;
+    }
+
+    void offer(Change change) {
+      synchronized (this) {
+        if (resync) {
+          return;
+        }
+        if (queue.size() >= bufferSize) {
+          queue.clear();
+          resync = true;
+          overflows.incrementAndGet();
+        } else {
+          queue.addLast(change);
+        }
+      }
+      drain();
+    }
+
+    void resync() {
+      synchronized (this) {
+        queue.clear();
+        resync = true;
+      }
+      drain();
+    }
+
+    void complete() {
+      completing = true;
+      drain();
+    }
+
+    void cancel() {
+      done = true;
+      remove(this);
+    }
+
+    void drain() {
+      if (pending.getAndIncrement() != 0) {
+        return;
+      }
+      do {
+        try {
+          write();
+        } catch (RuntimeException e) {
+          // The call was closed under us; nothing more can be sent on it.
+          cancel();
+        }
+      } while (pending.decrementAndGet() != 0);
+    }
+
+    private void write() {
+      while (!done) {
+        if (completing) {
+          cancel();
+          call.onCompleted();
+          return;
+        }
+        if (!call.isReady()) {
+          return;
+        }
+        if (snapshot != null) {
+          writeChunk();
+          continue;
+        }
+        Change change;
+        synchronized (this) {
+          if (resync) {
+            // Queued changes up to the catalog taken here are part of the snapshot; any change
+            // published after it is queued from now on.
+            resync = false;
+            queue.clear();
+            snapshot = catalogs.get();
+            snapshotNext = 0;
+            version = snapshot.version();
+            continue;
+          }
+          change = queue.pollFirst();
+        }
+        if (change == null) {
+          return;
+        }
+        if (change.version <= version) {
+          continue;
+        }
+        if (change.previousVersion != version) {
+          synchronized (this) {
+            resync = true;
+          }
+          continue;
+        }
+        version = change.version;
+        call.onNext(decode.apply(change.encoded));
+      }
+    }
+
+    private void writeChunk() {
+      int from = snapshotNext;
+      int end = snapshot.positions();
+      int to = from;
+      long bytes = 0;
+      while (to < end && bytes < SNAPSHOT_CHUNK_BYTES) {
+        bytes += snapshot.serialized(to++).size();
+      }
+      boolean last = to >= end;
+      call.onNext(decode.apply(encodeChunk(version, snapshot, from, to, from == 0, last)));
+      snapshotNext = to;
+      if (last) {
+        snapshot = null;
+        snapshots.incrementAndGet();
+      }
+    }
+  }
+}
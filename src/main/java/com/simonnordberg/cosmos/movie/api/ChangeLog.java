@@ -0,0 +1,177 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.simonnordberg.cosmos.api.Movie;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only segment of catalog changes, the write-ahead log of a {@link MovieStore}.
+ *
+ * <p>Layout of every record, big-endian:
+ * <pre>
+ *   int length, int crc32c of the body, body:
+ *     long sequence, byte type, payload
+ * </pre>
+ * A {@code PUT} record's payload is the encoded {@code Movie}; a {@code DELETE} record's payload
+ * is the UTF-8 movie id. Records are buffered by {@link #append} and made durable together by
+ * {@link #commit}, so a batch of writes costs one {@code fsync}. A record cut short by a crash
+ * fails its length or checksum test; replay stops there and truncates the segment.
+ */
+final class ChangeLog implements AutoCloseable {
+
+  /**
+   * Receives the changes of a segment in order.
+   */
+  interface Visitor {
+
+    /**
+     * @param movie the new contents of the movie, or {@code null} if it was deleted
+     */
+    void change(long sequence, String id, Movie movie);
+  }
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final int HEADER_SIZE = 2 * Integer.BYTES;
+  private static final int BODY_PREFIX_SIZE = Long.BYTES + 1;
+
+  private final FileChannel channel;
+  private final CRC32C crc = new CRC32C();
+  private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+  private long size;
+
+  private ChangeLog(FileChannel channel) throws IOException {
+    this.channel = channel;
+    this.size = channel.size();
+  }
+
+  /**
+   * Opens the segment at {@code path} for appending, creating it if needed.
+   */
+  static ChangeLog open(Path path) throws IOException {
+    return new ChangeLog(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND));
+  }
+
+  /**
+   * Buffers a change; it is written and made durable by the next {@link #commit}.
+   *
+   * @param movie the new contents of the movie, or {@code null} to delete it
+   */
+  void append(long sequence, String id, Movie movie) {
+    byte[] payload = movie != null ? movie.toByteArray() : id.getBytes(StandardCharsets.UTF_8);
+    int length = BODY_PREFIX_SIZE + payload.length;
+    ensureCapacity(HEADER_SIZE + length);
+    int start = buffer.position();
+    buffer.position(start + HEADER_SIZE);
+    buffer.putLong(sequence).put(movie != null ? PUT : DELETE).put(payload);
+
+    crc.reset();
+    crc.update(buffer.array(), start + HEADER_SIZE, length);
+    buffer.putInt(start, length).putInt(start + Integer.BYTES, (int) crc.getValue());
+  }
+
+  /**
+   * Writes all buffered changes and forces them to disk.
+   */
+  void commit() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      size += channel.write(buffer);
+    }
+    buffer.clear();
+    channel.force(false);
+  }
+
+  /**
+   * Returns the size of the segment in bytes, excluding uncommitted changes.
+   */
+  long size() {
+    return size;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Replays the changes in the segment at {@code path} with a sequence after {@code after}. A
+   * torn or corrupt record ends the segment: it and anything after it are truncated away.
+   *
+   * @return the highest sequence in the segment, or {@code after} if there is none beyond it
+   */
+  static long replay(Path path, long after, Visitor visitor) throws IOException {
+    long last = after;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Change log " + path + " is larger than 2 GB");
+      }
+      ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      CRC32C crc = new CRC32C();
+      int offset = 0;
+      while (true) {
+        if (buffer.limit() - offset < HEADER_SIZE) {
+          break;
+        }
+        int length = buffer.getInt(offset);
+        if (length < BODY_PREFIX_SIZE || length > buffer.limit() - offset - HEADER_SIZE) {
+          break;
+        }
+        ByteBuffer body = buffer.slice(offset + HEADER_SIZE, length);
+        crc.reset();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(offset + Integer.BYTES)) {
+          break;
+        }
+
+        long sequence = body.getLong();
+        byte type = body.get();
+        if (sequence > after) {
+          if (type == PUT) {
+            Movie movie = parse(body, path, sequence);
+            visitor.change(sequence, movie.getId(), movie);
+          } else if (type == DELETE) {
+            visitor.change(sequence, StandardCharsets.UTF_8.decode(body).toString(), null);
+          } else {
+            throw new IOException("Unknown record type " + type + " at sequence " + sequence
+                + " in " + path);
+          }
+          last = Math.max(last, sequence);
+        }
+        offset += HEADER_SIZE + length;
+      }
+      if (offset < channel.size()) {
+        channel.truncate(offset);
+        channel.force(true);
+      }
+    }
+    return last;
+  }
+
+  private static Movie parse(ByteBuffer payload, Path path, long sequence) throws IOException {
+    try {
+      return Movie.parseFrom(payload);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IOException("Corrupt record at sequence " + sequence + " in " + path, e);
+    }
+  }
+
+  private void ensureCapacity(int bytes) {
+    if (buffer.remaining() < bytes) {
+      ByteBuffer larger = ByteBuffer.allocate(
+          Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+      buffer.flip();
+      larger.put(buffer);
+      buffer = larger;
+    }
+  }
+}
@@ -0,0 +1,348 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.MethodDescriptor.MethodType;
+import io.grpc.ServerCall;
+import io.grpc.ServerCall.Listener;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control: bounds the calls of each method that run at once, with a limit that adapts to
+ * the latency the method shows, so an overloaded server turns excess calls away in microseconds
+ * instead of queueing everyone until health checks time out.
+ *
+ * <p>The limit follows the gradient algorithm: latency is averaged over short windows and compared
+ * with a slowly moving baseline. While latency stays within {@value #TOLERANCE} times the baseline
+ * the limit grows by about its square root per window; beyond that it shrinks in proportion to the
+ * inflation, down to half per window. Growth pauses while less than half of the limit is in use,
+ * since such latency says nothing about a higher limit. A baseline learned under load is already
+ * inflated, so calls that run out of their deadline are treated as drops: a window with any of
+ * them cuts the limit by {@value #DROP_BACKOFF} instead. Calls over the limit fail with
+ * {@code RESOURCE_EXHAUSTED}; calls whose remaining deadline is shorter than the
+ * {@value #SHORT_DEADLINE_PERCENTILE}th percentile latency of the calls the method served in the
+ * last window, which nine in ten calls took longer than, fail with {@code DEADLINE_EXCEEDED}
+ * before doing any work.
+ *
+ * <p>gRPC's own services, such as health checks and reflection, are never limited, nor are
+ * client-streaming calls and exempt methods, whose duration is set by the client.
+ */
+final class ConcurrencyLimiter implements ServerInterceptor, MetricsSource {
+
+  private static final int MIN_LIMIT = 2;
+  private static final double TOLERANCE = 1.5;
+  private static final double SMOOTHING = 0.2;
+  private static final double DROP_BACKOFF = 0.9;
+  private static final int MIN_WINDOW_SAMPLES = 10;
+  private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  // Number of windows the baseline averages over.
+  private static final int BASELINE_WINDOWS = 600;
+  private static final int SHORT_DEADLINE_PERCENTILE = 10;
+  // Latencies of successful calls kept per window, a uniform sample of them once there are more.
+  private static final int LATENCY_SAMPLES = 64;
+
+  private final int initialLimit;
+  private final int maxLimit;
+  private final Set<String> exemptMethods;
+  private final Map<String, MethodLimit> methods = new ConcurrentHashMap<>();
+
+  /**
+   * @param exemptMethods full names of methods that are never limited
+   */
+  ConcurrencyLimiter(int initialLimit, int maxLimit, Set<String> exemptMethods) {
+    this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+    this.initialLimit = Math.min(this.maxLimit, Math.max(MIN_LIMIT, initialLimit));
+    this.exemptMethods = exemptMethods;
+  }
+
+  @Override
+  public <ReqT, RespT> Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> serverCall,
+      Metadata metadata, ServerCallHandler<ReqT, RespT> next) {
+    MethodDescriptor<ReqT, RespT> descriptor = serverCall.getMethodDescriptor();
+    if (!limited(descriptor)) {
+      return next.startCall(serverCall, metadata);
+    }
+    String name = descriptor.getFullMethodName();
+    MethodLimit method = methods.get(name);
+    if (method == null) {
+      method = methods.computeIfAbsent(name, MethodLimit::new);
+    }
+
+    Deadline deadline = Context.current().getDeadline();
+    if (deadline != null && method.tooShort(deadline)) {
+      method.expired.increment();
+      serverCall.close(Status.DEADLINE_EXCEEDED
+          .withDescription("Deadline is too short to serve the call"), new Metadata());
+      return new Listener<>() {
+      };
+    }
+    int inFlight = method.tryAcquire();
+    if (inFlight < 0) {
+      method.rejected.increment();
+      serverCall.close(Status.RESOURCE_EXHAUSTED
+          .withDescription("Server is overloaded, retry later"), new Metadata());
+      return new Listener<>() {
+      };
+    }
+
+    LimitedCall<ReqT, RespT> call = new LimitedCall<>(serverCall, method, inFlight, deadline);
+    Listener<ReqT> listener;
+    try {
+      listener = next.startCall(call, metadata);
+    } catch (RuntimeException e) {
+      call.complete(null);
+      throw e;
+    }
+    return new SimpleForwardingServerCallListener<>(listener) {
+      @Override
+      public void onCancel() {
+        call.cancelled();
+        super.onCancel();
+      }
+    };
+  }
+
+  @Override
+  public void writeMetrics(StringBuilder out) {
+    MetricsSource.header(out, "movie_admission_limit", "gauge",
+        "Calls a method may run at once.");
+    methods.values().forEach(method -> MetricsSource.sample(out, "movie_admission_limit",
+        method.labels, method.limit));
+    MetricsSource.header(out, "movie_admission_in_flight", "gauge",
+        "Admitted calls currently running.");
+    methods.values().forEach(method -> MetricsSource.sample(out, "movie_admission_in_flight",
+        method.labels, method.inFlight.get()));
+    MetricsSource.header(out, "movie_admission_baseline_seconds", "gauge",
+        "Long-term average latency the limit is adapted against.");
+    methods.values().forEach(method -> MetricsSource.sample(out,
+        "movie_admission_baseline_seconds", method.labels,
+        method.baselineNanos() / TimeUnit.SECONDS.toNanos(1)));
+    MetricsSource.header(out, "movie_admission_min_deadline_seconds", "gauge",
+        "Remaining deadline below which calls are failed without running them.");
+    methods.values().forEach(method -> MetricsSource.sample(out,
+        "movie_admission_min_deadline_seconds", method.labels,
+        method.minDeadlineNanos / (double) TimeUnit.SECONDS.toNanos(1)));
+    MetricsSource.header(out, "movie_admission_rejected_total", "counter",
+        "Calls turned away before running.");
+    methods.values().forEach(method -> {
+      MetricsSource.sample(out, "movie_admission_rejected_total",
+          method.labels + ",reason=\"limit\"", method.rejected.sum());
+      MetricsSource.sample(out, "movie_admission_rejected_total",
+          method.labels + ",reason=\"deadline\"", method.expired.sum());
+    });
+  }
+
+  private boolean limited(MethodDescriptor<?, ?> descriptor) {
+    String service = descriptor.getServiceName();
+    return (descriptor.getType() == MethodType.UNARY
+        || descriptor.getType() == MethodType.SERVER_STREAMING)
+        && (service == null || !service.startsWith("grpc."))
+        && !exemptMethods.contains(descriptor.getFullMethodName());
+  }
+
+  /**
+   * Returns whether a call that completed with {@code status} did the method's work, so its
+   * latency says something about the load. Cancelled calls and rejected arguments do not.
+   */
+  private static boolean sampled(Status.Code status) {
+    return status == Status.Code.OK || status == Status.Code.NOT_FOUND
+        || status == Status.Code.DEADLINE_EXCEEDED;
+  }
+
+  private final class MethodLimit {
+
+    final String labels;
+    final AtomicInteger inFlight = new AtomicInteger();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder expired = new LongAdder();
+    volatile int limit = initialLimit;
+    // 0 until a window has had a call succeed within its deadline.
+    volatile long minDeadlineNanos;
+    // Guarded by this.
+    private double estimatedLimit = initialLimit;
+    private double baselineNanos;
+    private long windowStart = System.nanoTime();
+    private int windowSamples;
+    private double windowSumNanos;
+    private int windowMaxInFlight;
+    private boolean windowDropped;
+    private final long[] windowLatencies = new long[LATENCY_SAMPLES];
+    private int windowSucceeded;
+
+    MethodLimit(String fullMethodName) {
+      int slash = fullMethodName.lastIndexOf('/');
+      labels = "grpc_service=\"" + fullMethodName.substring(0, slash) + "\",grpc_method=\""
+          + fullMethodName.substring(slash + 1) + "\"";
+    }
+
+    /**
+     * Admits a call if the limit allows it.
+     *
+     * @return the calls in flight including this one, or -1 if it was not admitted
+     */
+    int tryAcquire() {
+      while (true) {
+        int current = inFlight.get();
+        if (current >= limit) {
+          return -1;
+        }
+        if (inFlight.compareAndSet(current, current + 1)) {
+          return current + 1;
+        }
+      }
+    }
+
+    void release(Status.Code status, long latencyNanos, int inFlightAtStart) {
+      inFlight.decrementAndGet();
+      if (status != null && sampled(status)) {
+        record(latencyNanos, inFlightAtStart, status);
+      }
+    }
+
+    /**
+     * Returns whether a call with {@code deadline} would likely expire before it is served.
+     */
+    boolean tooShort(Deadline deadline) {
+      return deadline.timeRemaining(TimeUnit.NANOSECONDS) < minDeadlineNanos;
+    }
+
+    synchronized double baselineNanos() {
+      return baselineNanos;
+    }
+
+    private synchronized void record(long latencyNanos, int inFlightAtStart,
+        Status.Code status) {
+      windowMaxInFlight = Math.max(windowMaxInFlight, inFlightAtStart);
+      if (status == Status.Code.DEADLINE_EXCEEDED) {
+        // Expired calls end at their deadline; their latency would only hide the overload.
+        windowDropped = true;
+      } else {
+        windowSamples++;
+        windowSumNanos += latencyNanos;
+        if (status == Status.Code.OK) {
+          sampleLatency(latencyNanos);
+        }
+      }
+      long now = System.nanoTime();
+      if (now - windowStart < WINDOW_NANOS
+          || (windowSamples < MIN_WINDOW_SAMPLES && !windowDropped)) {
+        return;
+      }
+      double latency = windowSamples > 0 ? windowSumNanos / windowSamples : 0;
+      int maxInFlight = windowMaxInFlight;
+      boolean dropped = windowDropped;
+      windowStart = now;
+      windowSamples = 0;
+      windowSumNanos = 0;
+      windowMaxInFlight = 0;
+      windowDropped = false;
+      if (windowSucceeded > 0) {
+        int samples = Math.min(windowSucceeded, LATENCY_SAMPLES);
+        long[] sorted = Arrays.copyOf(windowLatencies, samples);
+        Arrays.sort(sorted);
+        minDeadlineNanos = sorted[samples * SHORT_DEADLINE_PERCENTILE / 100];
+        windowSucceeded = 0;
+      }
+
+      if (dropped) {
+        estimatedLimit = Math.max(MIN_LIMIT, estimatedLimit * DROP_BACKOFF);
+        limit = (int) estimatedLimit;
+        return;
+      }
+      if (baselineNanos == 0) {
+        baselineNanos = latency;
+      } else {
+        baselineNanos += (latency - baselineNanos) / BASELINE_WINDOWS;
+        if (baselineNanos > 2 * latency) {
+          // Latency is back to normal after a long overload; catch up faster than the average.
+          baselineNanos *= 0.95;
+        }
+      }
+
+      double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baselineNanos / latency));
+      if (gradient == 1.0 && maxInFlight < estimatedLimit / 2) {
+        return;
+      }
+      double target = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+      estimatedLimit = Math.max(MIN_LIMIT, Math.min(maxLimit,
+          estimatedLimit * (1 - SMOOTHING) + target * SMOOTHING));
+      limit = (int) estimatedLimit;
+    }
+
+    /**
+     * Adds the latency of a successful call to the window's sample, by reservoir sampling once
+     * the sample is full.
+     */
+    private void sampleLatency(long latencyNanos) {
+      int seen = windowSucceeded++;
+      if (seen < LATENCY_SAMPLES) {
+        windowLatencies[seen] = latencyNanos;
+      } else {
+        int slot = ThreadLocalRandom.current().nextInt(seen + 1);
+        if (slot < LATENCY_SAMPLES) {
+          windowLatencies[slot] = latencyNanos;
+        }
+      }
+    }
+  }
+
+  private static final class LimitedCall<ReqT, RespT>
+      extends SimpleForwardingServerCall<ReqT, RespT> {
+
+    private final MethodLimit method;
+    private final int inFlightAtStart;
+    private final Deadline deadline;
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    LimitedCall(ServerCall<ReqT, RespT> delegate, MethodLimit method, int inFlightAtStart,
+        Deadline deadline) {
+      super(delegate);
+      this.method = method;
+      this.inFlightAtStart = inFlightAtStart;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public void close(Status status, Metadata trailers) {
+      // Work finished after the deadline was in vain, however the call ends.
+      complete(expired() ? Status.Code.DEADLINE_EXCEEDED : status.getCode());
+      super.close(status, trailers);
+    }
+
+    /**
+     * Completes a call that was cancelled, which gRPC also does when its deadline passes.
+     */
+    void cancelled() {
+      complete(expired() ? Status.Code.DEADLINE_EXCEEDED : null);
+    }
+
+    private boolean expired() {
+      return deadline != null && deadline.isExpired();
+    }
+
+    /**
+     * @param status the status the call completed with, or {@code null} if it was abandoned
+     */
+    void complete(Status.Code status) {
+      if (completed.compareAndSet(false, true)) {
+        method.release(status, System.nanoTime() - startNanos, inFlightAtStart);
+      }
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import java.util.Locale;
+
+/**
+ * Server settings. A key such as {@code movie.catalog} is read from the system property of the
+ * same name, then from the environment variable {@code MOVIE_CATALOG}, then falls back to the
+ * given default.
+ */
+final class Config {
+
+  private Config() {
+  }
+
+  static String string(String key, String defaultValue) {
+    String value = System.getProperty(key);
+    if (value == null) {
+      value = System.getenv(key.toUpperCase(Locale.ROOT).replace('.', '_').replace('-', '_'));
+    }
+    return value == null || value.isBlank() ? defaultValue : value.trim();
+  }
+
+  static long longValue(String key, long defaultValue) {
+    String value = string(key, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value for " + key + ": " + value, e);
+    }
+  }
+
+  static double doubleValue(String key, double defaultValue) {
+    String value = string(key, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value for " + key + ": " + value, e);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.ByteOutput;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor.Marshaller;
+import io.grpc.Status;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Marshals messages that are already encoded. The transport drains the bytes straight into its
+ * outbound buffer, so catalog entries are never re-encoded per response. Heap-backed bytes are
+ * written from their own array. The bytes of a catalog snapshot live in the mapped file, which
+ * has no array, so they are copied through a small per-thread chunk; {@link ByteString#writeTo}
+ * would copy each record into a new array first.
+ */
+final class EncodedMessageMarshaller implements Marshaller<ByteString> {
+
+  static final EncodedMessageMarshaller INSTANCE = new EncodedMessageMarshaller();
+
+  private EncodedMessageMarshaller() {
+  }
+
+  @Override
+  public InputStream stream(ByteString value) {
+    return new EncodedStream(value);
+  }
+
+  @Override
+  public ByteString parse(InputStream stream) {
+    try {
+      return ByteString.readFrom(stream);
+    } catch (IOException e) {
+      throw Status.INTERNAL.withDescription("Failed to read message").withCause(e)
+          .asRuntimeException();
+    }
+  }
+
+  private static final class EncodedStream extends InputStream implements Drainable, KnownLength {
+
+    private final ByteString bytes;
+    private InputStream input;
+    private boolean drained;
+
+    EncodedStream(ByteString bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public int drainTo(OutputStream target) throws IOException {
+      if (drained || input != null) {
+        throw new IllegalStateException("Stream has already been read");
+      }
+      drained = true;
+      UnsafeByteOperations.unsafeWriteTo(bytes, new StreamOutput(target));
+      return bytes.size();
+    }
+
+    @Override
+    public int available() throws IOException {
+      if (drained) {
+        return 0;
+      }
+      return input == null ? bytes.size() : input.available();
+    }
+
+    @Override
+    public int read() throws IOException {
+      return drained ? -1 : input().read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return drained ? -1 : input().read(b, off, len);
+    }
+
+    private InputStream input() {
+      if (input == null) {
+        input = bytes.newInput();
+      }
+      return input;
+    }
+  }
+
+  /**
+   * Writes the pieces of a {@link ByteString} to a stream without copying them into new arrays.
+   */
+  private static final class StreamOutput extends ByteOutput {
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final ThreadLocal<byte[]> CHUNK =
+        ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+
+    private final OutputStream target;
+
+    StreamOutput(OutputStream target) {
+      this.target = target;
+    }
+
+    @Override
+    public void write(byte value) throws IOException {
+      target.write(value);
+    }
+
+    @Override
+    public void write(byte[] value, int offset, int length) throws IOException {
+      target.write(value, offset, length);
+    }
+
+    @Override
+    public void writeLazy(byte[] value, int offset, int length) throws IOException {
+      target.write(value, offset, length);
+    }
+
+    @Override
+    public void write(ByteBuffer value) throws IOException {
+      if (value.hasArray()) {
+        target.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+        value.position(value.limit());
+        return;
+      }
+      byte[] chunk = CHUNK.get();
+      while (value.hasRemaining()) {
+        int length = Math.min(chunk.length, value.remaining());
+        value.get(chunk, 0, length);
+        target.write(chunk, 0, length);
+      }
+    }
+
+    @Override
+    public void writeLazy(ByteBuffer value) throws IOException {
+      write(value);
+    }
+  }
+}
@@ -0,0 +1,331 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Ranked word search over titles. Titles are normalized like {@link TitleIndex} and split into
+ * words; each word has a posting list of (title, term frequency) pairs, delta and varint encoded.
+ * Titles are scored with BM25 and the top k are found with WAND, which uses the best possible
+ * score of each word to skip titles that cannot enter the current top k.
+ */
+final class FullTextIndex {
+
+  private static final float K1 = 1.2f;
+  private static final float B = 0.75f;
+
+  private final Map<String, Term> terms;
+  private final short[] lengths;
+  private final int documents;
+  private final float averageLength;
+
+  FullTextIndex(TitleColumn titles) {
+    this(titles, null);
+  }
+
+  /**
+   * Indexes {@code titles} but takes the term and length statistics of BM25 from
+   * {@code corpus}, so that scores are comparable with those of other indexes over the same
+   * corpus, and equal to those of an index over all of it.
+   *
+   * @param corpus the normalized titles of the whole catalog, of which {@code titles} are a
+   *     part; {@code null} if they are the whole catalog
+   */
+  FullTextIndex(TitleColumn titles, Iterable<String> corpus) {
+    int count = titles.size();
+    this.lengths = new short[count];
+    Map<String, PostingsWriter> writers = new HashMap<>();
+    long totalLength = 0;
+    for (int doc = 0; doc < count; doc++) {
+      List<String> tokens = tokenize(titles.title(doc));
+      lengths[doc] = (short) Math.min(tokens.size(), Short.MAX_VALUE);
+      totalLength += tokens.size();
+      Map<String, Integer> frequencies = new HashMap<>();
+      for (String token : tokens) {
+        frequencies.merge(token, 1, Integer::sum);
+      }
+      int document = doc;
+      frequencies.forEach((token, tf) ->
+          writers.computeIfAbsent(token, t -> new PostingsWriter()).add(document, tf));
+    }
+    if (corpus != null) {
+      // Only the terms of these titles need their corpus frequency.
+      count = 0;
+      totalLength = 0;
+      for (String title : corpus) {
+        List<String> tokens = tokenize(title);
+        for (String token : tokens) {
+          PostingsWriter writer = writers.get(token);
+          if (writer != null && writer.lastCorpusDocument != count) {
+            writer.lastCorpusDocument = count;
+            writer.corpusDocuments++;
+          }
+        }
+        totalLength += tokens.size();
+        count++;
+      }
+    }
+    this.documents = count;
+    this.averageLength = count == 0 ? 1 : Math.max(1, (float) totalLength / count);
+
+    // Each writer is dropped as soon as its list is encoded, so the two are not all held at once.
+    this.terms = new HashMap<>(writers.size() * 4 / 3 + 1);
+    for (Iterator<Map.Entry<String, PostingsWriter>> it = writers.entrySet().iterator();
+        it.hasNext(); ) {
+      Map.Entry<String, PostingsWriter> entry = it.next();
+      PostingsWriter writer = entry.getValue();
+      int frequency = corpus != null ? writer.corpusDocuments : writer.documents;
+      float idf = (float) Math.log(1 + (documents - frequency + 0.5) / (frequency + 0.5));
+      byte[] postings = writer.encoded();
+      float maxScore = 0;
+      Cursor cursor = new Cursor(new Term(postings, idf, 0));
+      for (cursor.next(); cursor.doc != Integer.MAX_VALUE; cursor.next()) {
+        maxScore = Math.max(maxScore, score(idf, cursor.tf, cursor.doc));
+      }
+      terms.put(entry.getKey(), new Term(postings, idf, maxScore));
+      it.remove();
+    }
+  }
+
+  /**
+   * Splits an already normalized title or query into words.
+   */
+  static List<String> tokenize(String normalized) {
+    List<String> tokens = new ArrayList<>();
+    int start = -1;
+    for (int i = 0; i <= normalized.length(); i++) {
+      boolean wordChar = i < normalized.length()
+          && Character.isLetterOrDigit(normalized.charAt(i));
+      if (wordChar && start < 0) {
+        start = i;
+      } else if (!wordChar && start >= 0) {
+        tokens.add(normalized.substring(start, i));
+        start = -1;
+      }
+    }
+    return tokens;
+  }
+
+  /**
+   * Returns the positions of up to {@code k} titles matching any word of {@code query}, best
+   * BM25 score first. If {@code filter} is not {@code null}, titles not set in it are skipped.
+   */
+  int[] search(String query, int k, BitSet filter) {
+    return search(query, k, filter, null);
+  }
+
+  /**
+   * Like {@link #search(String, int, BitSet)}, and stores the score of every result at the same
+   * index of {@code scores}, which must have room for {@code k} results.
+   */
+  int[] search(String query, int k, BitSet filter, float[] scores) {
+    Set<String> words = new LinkedHashSet<>(tokenize(TitleIndex.normalize(query)));
+    List<Cursor> cursors = new ArrayList<>(words.size());
+    for (String word : words) {
+      Term term = terms.get(word);
+      if (term != null) {
+        Cursor cursor = new Cursor(term);
+        cursor.next();
+        cursors.add(cursor);
+      }
+    }
+    if (cursors.isEmpty() || k <= 0) {
+      return new int[0];
+    }
+
+    // Min-heap of (doc, score) holding the current top k; its head is the entry threshold.
+    PriorityQueue<double[]> top = new PriorityQueue<>(k + 1,
+        (a, b) -> a[1] != b[1] ? Double.compare(a[1], b[1]) : Double.compare(b[0], a[0]));
+    Cursor[] sorted = cursors.toArray(new Cursor[0]);
+    while (true) {
+      Arrays.sort(sorted, (a, b) -> Integer.compare(a.doc, b.doc));
+      double threshold = top.size() < k ? -1 : top.peek()[1];
+
+      // The pivot is the first title whose preceding lists could lift it over the threshold.
+      int pivot = -1;
+      float bound = 0;
+      for (int i = 0; i < sorted.length && sorted[i].doc != Integer.MAX_VALUE; i++) {
+        bound += sorted[i].term.maxScore;
+        if (bound > threshold) {
+          pivot = i;
+          break;
+        }
+      }
+      if (pivot < 0) {
+        break;
+      }
+
+      int pivotDoc = sorted[pivot].doc;
+      if (sorted[0].doc == pivotDoc && filter != null && !filter.get(pivotDoc)) {
+        for (Cursor cursor : sorted) {
+          if (cursor.doc != pivotDoc) {
+            break;
+          }
+          cursor.next();
+        }
+      } else if (sorted[0].doc == pivotDoc) {
+        float score = 0;
+        for (Cursor cursor : sorted) {
+          if (cursor.doc != pivotDoc) {
+            break;
+          }
+          score += score(cursor.term.idf, cursor.tf, pivotDoc);
+          cursor.next();
+        }
+        if (score > threshold) {
+          top.add(new double[] {pivotDoc, score});
+          if (top.size() > k) {
+            top.poll();
+          }
+        }
+      } else {
+        for (int i = 0; i < pivot; i++) {
+          sorted[i].advance(pivotDoc);
+        }
+      }
+    }
+
+    int[] result = new int[top.size()];
+    for (int i = result.length - 1; i >= 0; i--) {
+      double[] entry = top.poll();
+      result[i] = (int) entry[0];
+      if (scores != null) {
+        scores[i] = (float) entry[1];
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the BM25 score of a title that is not in the index, using the term and length
+   * statistics of the indexed titles, so it can be compared with the scores of indexed titles.
+   */
+  float score(String query, String normalizedTitle) {
+    List<String> tokens = tokenize(normalizedTitle);
+    float norm = K1 * (1 - B + B * Math.min(tokens.size(), Short.MAX_VALUE) / averageLength);
+    float score = 0;
+    for (String word : new LinkedHashSet<>(tokenize(TitleIndex.normalize(query)))) {
+      int tf = 0;
+      for (String token : tokens) {
+        if (token.equals(word)) {
+          tf++;
+        }
+      }
+      if (tf > 0) {
+        Term term = terms.get(word);
+        float idf = term != null ? term.idf
+            : (float) Math.log(1 + (documents + 0.5) / 0.5);
+        score += idf * tf * (K1 + 1) / (tf + norm);
+      }
+    }
+    return score;
+  }
+
+  private float score(float idf, int tf, int doc) {
+    float norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+    return idf * tf * (K1 + 1) / (tf + norm);
+  }
+
+  private static final class Term {
+
+    final byte[] postings;
+    final float idf;
+    final float maxScore;
+
+    Term(byte[] postings, float idf, float maxScore) {
+      this.postings = postings;
+      this.idf = idf;
+      this.maxScore = maxScore;
+    }
+  }
+
+  /**
+   * Forward-only reader of one posting list. {@code doc} is {@link Integer#MAX_VALUE} once the list
+   * is exhausted.
+   */
+  private static final class Cursor {
+
+    final Term term;
+    int position;
+    int doc = -1;
+    int tf;
+
+    Cursor(Term term) {
+      this.term = term;
+    }
+
+    void next() {
+      byte[] data = term.postings;
+      if (position >= data.length) {
+        doc = Integer.MAX_VALUE;
+        return;
+      }
+      int delta = readVarint(data);
+      tf = readVarint(data);
+      doc = doc < 0 ? delta : doc + delta;
+    }
+
+    void advance(int target) {
+      while (doc < target) {
+        next();
+      }
+    }
+
+    private int readVarint(byte[] data) {
+      int value = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = data[position++];
+        value |= (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+    }
+  }
+
+  /**
+   * Encodes a posting list as it is added to, so that a list under construction takes about as
+   * little heap as a finished one.
+   */
+  private static final class PostingsWriter {
+
+    byte[] bytes = new byte[4];
+    int length;
+    int previous;
+    int documents;
+    int corpusDocuments;
+    int lastCorpusDocument = -1;
+
+    void add(int doc, int tf) {
+      // Two varints take at most ten bytes.
+      if (length + 10 > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 10));
+      }
+      length = writeVarint(bytes, length, documents == 0 ? doc : doc - previous);
+      length = writeVarint(bytes, length, tf);
+      previous = doc;
+      documents++;
+    }
+
+    byte[] encoded() {
+      return Arrays.copyOf(bytes, length);
+    }
+
+    private static int writeVarint(byte[] out, int position, int value) {
+      while ((value & ~0x7F) != 0) {
+        out[position++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out[position++] = (byte) value;
+      return position;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.simonnordberg.cosmos.api.Movie;
+import java.util.Collection;
+
+/**
+ * Movie records held as decoded messages on the heap, together with their encoding.
+ */
+final class HeapMovieRecords implements MovieRecords {
+
+  private final Movie[] movies;
+  private final ByteString[] encoded;
+
+  HeapMovieRecords(Collection<Movie> movies) {
+    this.movies = movies.toArray(new Movie[0]);
+    this.encoded = new ByteString[this.movies.length];
+    for (int i = 0; i < this.movies.length; i++) {
+      encoded[i] = UnsafeByteOperations.unsafeWrap(this.movies[i].toByteArray());
+    }
+  }
+
+  @Override
+  public int size() {
+    return movies.length;
+  }
+
+  @Override
+  public Movie get(int index) {
+    return movies[index];
+  }
+
+  @Override
+  public ByteString encoded(int index) {
+    return encoded[index];
+  }
+
+  @Override
+  public String id(int index) {
+    return movies[index].getId();
+  }
+
+  @Override
+  public String name(int index) {
+    return movies[index].getName();
+  }
+}
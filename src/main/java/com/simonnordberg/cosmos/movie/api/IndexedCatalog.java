@@ -0,0 +1,158 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.ByteString;
+import com.simonnordberg.cosmos.api.Movie;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Catalog whose movies are all held by one set of records with indexes built over them. It is
+ * built once and never changes.
+ *
+ * <p>Records may stay off-heap, but the indexes are on the heap. They hold no decoded ids and no
+ * title as a string of its own, and take about 110 bytes per movie once built; building them
+ * takes up to 175, while each record is decoded once. A 64 MB heap therefore opens a catalog of
+ * about 400,000 movies, and a catalog of a million needs a heap of about 176 MB.
+ */
+final class IndexedCatalog extends MovieCatalog {
+
+  private final MovieRecords records;
+  private final IdIndex idIndex;
+  private final TitleIndex titleIndex;
+  private final SuggestIndex suggestIndex;
+  private final FullTextIndex fullTextIndex;
+  private final AttributeIndex attributeIndex;
+
+  /**
+   * @param corpus the normalized titles of the whole catalog that ranked scores must be comparable
+   *     across, see {@link FullTextIndex}; {@code null} if {@code records} are the whole catalog
+   */
+  private IndexedCatalog(long version, MovieRecords records, Iterable<String> corpus) {
+    super(version);
+    this.records = records;
+    this.idIndex = new IdIndex(records);
+    TitleColumn.Builder titles = new TitleColumn.Builder(records.size());
+    int[] years = new int[records.size()];
+    String[][] genres = new String[records.size()][];
+    float[] popularity = new float[records.size()];
+    // Every record decodes its genres into a list of its own; only one copy of each set is kept.
+    Map<List<String>, String[]> genreSets = new HashMap<>();
+    for (int i = 0; i < records.size(); i++) {
+      Movie movie = records.get(i);
+      if (idIndex.putIfAbsent(movie.getId(), i) >= 0) {
+        throw new IllegalArgumentException("Duplicate movie id " + movie.getId());
+      }
+      titles.add(TitleIndex.normalize(movie.getName()));
+      years[i] = movie.getYear();
+      genres[i] = genreSets.computeIfAbsent(movie.getGenresList(),
+          list -> list.toArray(new String[0]));
+      popularity[i] = movie.getPopularity();
+    }
+    // Built first so that the decoded attributes can go before the title indexes are built.
+    this.attributeIndex = new AttributeIndex(years, genres, popularity);
+    // The title indexes share one column, and no title is held as a string of its own.
+    this.titleIndex = new TitleIndex(titles.build());
+    this.suggestIndex = new SuggestIndex(titleIndex.titles(), popularity);
+    this.fullTextIndex = new FullTextIndex(titleIndex.titles(), corpus);
+  }
+
+  static IndexedCatalog of(long version, Collection<Movie> movies) {
+    return new IndexedCatalog(version, new HeapMovieRecords(movies), null);
+  }
+
+  static IndexedCatalog of(long version, MovieRecords records) {
+    return new IndexedCatalog(version, records, null);
+  }
+
+  /**
+   * Builds the catalog of one shard. Its ranked searches score with the statistics of the full
+   * catalog, so that the scores of all shards are comparable.
+   */
+  static IndexedCatalog ofShard(long version, ShardRecords records) {
+    return new IndexedCatalog(version, records, records.catalogTitles());
+  }
+
+  static IndexedCatalog open(Path path, long version) throws IOException {
+    return new IndexedCatalog(version, CatalogSnapshot.open(path), null);
+  }
+
+  @Override
+  int size() {
+    return records.size();
+  }
+
+  @Override
+  int positions() {
+    return records.size();
+  }
+
+  @Override
+  Movie get(int index) {
+    return records.get(index);
+  }
+
+  @Override
+  ByteString serialized(int index) {
+    return records.encoded(index);
+  }
+
+  @Override
+  int[] search(String query) {
+    return titleIndex.search(query);
+  }
+
+  @Override
+  int[] rank(String query, int k, BitSet filter) {
+    return fullTextIndex.search(query, k, filter);
+  }
+
+  @Override
+  BitSet filter(int minYear, int maxYear, Collection<String> genres) {
+    return attributeIndex.filter(minYear, maxYear, genres);
+  }
+
+  @Override
+  int[] sortByPopularity(int[] positions) {
+    return attributeIndex.sortByPopularity(positions);
+  }
+
+  @Override
+  int popularitySearch(int[] sorted, int position) {
+    return attributeIndex.popularitySearch(sorted, position);
+  }
+
+  @Override
+  int[] suggest(String prefix, int k) {
+    return suggestIndex.suggest(prefix, k);
+  }
+
+  @Override
+  int indexOf(String id) {
+    return idIndex.get(id);
+  }
+
+  @Override
+  int[] rank(String query, int k, BitSet filter, float[] scores) {
+    return fullTextIndex.search(query, k, filter, scores);
+  }
+
+  @Override
+  float score(String query, String normalizedTitle) {
+    return fullTextIndex.score(query, normalizedTitle);
+  }
+
+  @Override
+  float popularity(int index) {
+    return attributeIndex.popularity(index);
+  }
+
+  @Override
+  String normalizedTitle(int index) {
+    return titleIndex.titles().title(index);
+  }
+}
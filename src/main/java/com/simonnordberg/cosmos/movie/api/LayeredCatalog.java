@@ -0,0 +1,312 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.ByteString;
+import com.simonnordberg.cosmos.api.Movie;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Catalog made of a large base catalog and the changes made since it was built, in the manner of
+ * a log-structured merge tree. The base is never touched: removed or replaced base movies are
+ * masked by a bitset and new or replaced movies go to a small delta catalog with indexes of its
+ * own. The base may itself be layered, so the changes since the last snapshot form a stack of
+ * deltas that grow geometrically towards the bottom; {@link MovieStore} builds a new base once
+ * enough changes have accumulated.
+ *
+ * <p>Base movies keep their positions and delta movies follow them. Ranked results of every delta
+ * are scored with the BM25 statistics of the bottom catalog, so results of all layers merge into
+ * one ranking.
+ */
+final class LayeredCatalog extends MovieCatalog {
+
+  /**
+   * A layer is merged into the next changes instead of staying below them while its delta holds at
+   * most this many movies per change. Each movie is then re-indexed a logarithmic number of times
+   * between snapshots, and there is a logarithmic number of layers to search.
+   */
+  static final int MERGE_FACTOR = 4;
+
+  private final MovieCatalog base;
+  private final BitSet deleted;
+  private final IndexedCatalog delta;
+  private final int baseSize;
+  private final int size;
+
+  private LayeredCatalog(long version, MovieCatalog base, BitSet deleted, IndexedCatalog delta) {
+    super(version);
+    this.base = base;
+    this.deleted = deleted;
+    this.delta = delta;
+    this.baseSize = base.positions();
+    this.size = base.size() - deleted.cardinality() + delta.size();
+  }
+
+  /**
+   * Returns {@code catalog} with {@code changes} applied. Changes map movie ids to their new
+   * contents, or to {@code null} to remove the movie.
+   *
+   * <p>The changes become a new layer on top of {@code catalog}, after merging into them every top
+   * layer that is not more than {@link #MERGE_FACTOR} times larger, so the cost is proportional to
+   * the changes and the layers merged, not to all the changes since the base was built.
+   */
+  static MovieCatalog apply(MovieCatalog catalog, long version, Map<String, Movie> changes) {
+    Map<String, Movie> pending = changes;
+    while (catalog instanceof LayeredCatalog) {
+      LayeredCatalog top = (LayeredCatalog) catalog;
+      if (top.delta.size() > (long) MERGE_FACTOR * pending.size()) {
+        break;
+      }
+      Map<String, Movie> merged = new LinkedHashMap<>();
+      for (int position = top.deleted.nextSetBit(0); position >= 0;
+          position = top.deleted.nextSetBit(position + 1)) {
+        merged.put(top.base.get(position).getId(), null);
+      }
+      for (int i = 0; i < top.delta.size(); i++) {
+        Movie movie = top.delta.get(i);
+        merged.remove(movie.getId());
+        merged.put(movie.getId(), movie);
+      }
+      pending.forEach((id, movie) -> {
+        merged.remove(id);
+        merged.put(id, movie);
+      });
+      pending = merged;
+      catalog = top.base;
+    }
+
+    BitSet deleted = new BitSet();
+    List<Movie> added = new ArrayList<>(pending.size());
+    for (Map.Entry<String, Movie> change : pending.entrySet()) {
+      int position = catalog.indexOf(change.getKey());
+      if (position >= 0) {
+        deleted.set(position);
+      }
+      if (change.getValue() != null) {
+        added.add(change.getValue());
+      }
+    }
+    return new LayeredCatalog(version, catalog, deleted, IndexedCatalog.of(version, added));
+  }
+
+  /**
+   * Returns the number of layers, counting the bottom catalog.
+   */
+  int depth() {
+    return base instanceof LayeredCatalog ? ((LayeredCatalog) base).depth() + 1 : 2;
+  }
+
+  @Override
+  int size() {
+    return size;
+  }
+
+  @Override
+  int positions() {
+    return baseSize + delta.positions();
+  }
+
+  @Override
+  Movie get(int index) {
+    return index < baseSize ? base.get(index) : delta.get(index - baseSize);
+  }
+
+  @Override
+  ByteString serialized(int index) {
+    return index < baseSize ? base.serialized(index) : delta.serialized(index - baseSize);
+  }
+
+  @Override
+  int[] search(String query) {
+    int[] fromBase = base.search(query);
+    int[] fromDelta = delta.search(query);
+    int[] result = new int[fromBase.length + fromDelta.length];
+    int count = 0;
+    for (int position : fromBase) {
+      if (!deleted.get(position)) {
+        result[count++] = position;
+      }
+    }
+    for (int position : fromDelta) {
+      result[count++] = baseSize + position;
+    }
+    return count == result.length ? result : Arrays.copyOf(result, count);
+  }
+
+  @Override
+  int[] rank(String query, int k, BitSet filter) {
+    return rank(query, k, filter, null);
+  }
+
+  @Override
+  int[] rank(String query, int k, BitSet filter, float[] scores) {
+    BitSet baseFilter = null;
+    if (filter != null || !deleted.isEmpty()) {
+      baseFilter = filter != null ? filter.get(0, baseSize) : all(baseSize);
+      baseFilter.andNot(deleted);
+    }
+    float[] baseScores = new float[Math.max(0, Math.min(k, baseSize))];
+    int[] fromBase = base.rank(query, baseScores.length, baseFilter, baseScores);
+    // The delta is small, so all of its matches are rescored against the base's statistics.
+    int[] fromDelta = delta.rank(query, delta.positions(),
+        filter != null ? filter.get(baseSize, positions()) : null);
+
+    long[] keys = new long[fromBase.length + fromDelta.length];
+    for (int i = 0; i < fromBase.length; i++) {
+      keys[i] = AttributeIndex.descendingKey(baseScores[i], fromBase[i]);
+    }
+    for (int i = 0; i < fromDelta.length; i++) {
+      keys[fromBase.length + i] = AttributeIndex.descendingKey(
+          base.score(query, delta.normalizedTitle(fromDelta[i])), baseSize + fromDelta[i]);
+    }
+    Arrays.sort(keys);
+    int[] result = new int[Math.min(k, keys.length)];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (int) keys[i];
+      if (scores != null) {
+        scores[i] = AttributeIndex.descendingValue(keys[i]);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  float score(String query, String normalizedTitle) {
+    return base.score(query, normalizedTitle);
+  }
+
+  @Override
+  BitSet filter(int minYear, int maxYear, Collection<String> genres) {
+    BitSet fromBase = base.filter(minYear, maxYear, genres);
+    BitSet fromDelta = delta.filter(minYear, maxYear, genres);
+    if (fromBase == null && fromDelta == null) {
+      return null;
+    }
+    BitSet result = fromBase != null ? (BitSet) fromBase.clone() : all(baseSize);
+    if (fromDelta == null) {
+      result.set(baseSize, positions());
+    } else {
+      fromDelta.stream().forEach(position -> result.set(baseSize + position));
+    }
+    return result;
+  }
+
+  @Override
+  int[] sortByPopularity(int[] positions) {
+    long[] keys = new long[positions.length];
+    for (int i = 0; i < positions.length; i++) {
+      keys[i] = AttributeIndex.descendingKey(popularity(positions[i]), positions[i]);
+    }
+    Arrays.sort(keys);
+    int[] sorted = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      sorted[i] = (int) keys[i];
+    }
+    return sorted;
+  }
+
+  @Override
+  int popularitySearch(int[] sorted, int position) {
+    long key = AttributeIndex.descendingKey(popularity(position), position);
+    int lo = 0;
+    int hi = sorted.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      long midKey = AttributeIndex.descendingKey(popularity(sorted[mid]), sorted[mid]);
+      if (midKey < key) {
+        lo = mid + 1;
+      } else if (midKey > key) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(lo + 1);
+  }
+
+  @Override
+  int[] suggest(String prefix, int k) {
+    // Ask the base for more until enough of its suggestions survive the deletions.
+    int[] fromBase;
+    int live;
+    int asked = k;
+    while (true) {
+      fromBase = base.suggest(prefix, asked);
+      live = 0;
+      for (int position : fromBase) {
+        if (!deleted.get(position)) {
+          fromBase[live++] = position;
+        }
+      }
+      if (live >= k || fromBase.length < asked) {
+        break;
+      }
+      asked = (int) Math.min(Integer.MAX_VALUE, asked * 2L + 1);
+    }
+    int[] fromDelta = delta.suggest(prefix, k);
+
+    int[] result = new int[Math.min(k, live + fromDelta.length)];
+    int b = 0;
+    int d = 0;
+    for (int n = 0; n < result.length; n++) {
+      if (d >= fromDelta.length || (b < live
+          && compareSuggestions(fromBase[b], baseSize + fromDelta[d]) <= 0)) {
+        result[n] = fromBase[b++];
+      } else {
+        result[n] = baseSize + fromDelta[d++];
+      }
+    }
+    return result;
+  }
+
+  @Override
+  int indexOf(String id) {
+    int position = delta.indexOf(id);
+    if (position >= 0) {
+      return baseSize + position;
+    }
+    position = base.indexOf(id);
+    return position >= 0 && !deleted.get(position) ? position : -1;
+  }
+
+  @Override
+  boolean isLive(int position) {
+    return position >= baseSize || !deleted.get(position) && base.isLive(position);
+  }
+
+  /**
+   * Orders suggestions the way {@link SuggestIndex} does: by popularity, then by title length,
+   * then by title.
+   */
+  private int compareSuggestions(int a, int b) {
+    int compare = Float.compare(popularity(b), popularity(a));
+    if (compare != 0) {
+      return compare;
+    }
+    String titleA = normalizedTitle(a);
+    String titleB = normalizedTitle(b);
+    compare = Integer.compare(titleA.length(), titleB.length());
+    return compare != 0 ? compare : titleA.compareTo(titleB);
+  }
+
+  @Override
+  float popularity(int index) {
+    return index < baseSize ? base.popularity(index) : delta.popularity(index - baseSize);
+  }
+
+  @Override
+  String normalizedTitle(int index) {
+    return index < baseSize ? base.normalizedTitle(index)
+        : delta.normalizedTitle(index - baseSize);
+  }
+
+  private static BitSet all(int size) {
+    BitSet all = new BitSet(size);
+    all.set(0, size);
+    return all;
+  }
+}
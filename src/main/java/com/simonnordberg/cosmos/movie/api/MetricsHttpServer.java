@@ -0,0 +1,62 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Serves {@code GET /metrics} in Prometheus text format from the JDK's built-in HTTP server,
+ * on a single thread of its own.
+ */
+final class MetricsHttpServer implements AutoCloseable {
+
+  private final HttpServer server;
+  private final List<MetricsSource> sources = new CopyOnWriteArrayList<>();
+
+  MetricsHttpServer(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/metrics", this::handle);
+  }
+
+  MetricsHttpServer register(MetricsSource source) {
+    sources.add(source);
+    return this;
+  }
+
+  void start() {
+    server.start();
+  }
+
+  int port() {
+    return server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!exchange.getRequestMethod().equals("GET")) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      StringBuilder out = new StringBuilder(4096);
+      for (MetricsSource source : sources) {
+        source.writeMetrics(out);
+      }
+      byte[] body = out.toString().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    }
+  }
+}
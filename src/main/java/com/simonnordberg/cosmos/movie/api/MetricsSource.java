@@ -0,0 +1,38 @@
+package com.simonnordberg.cosmos.movie.api;
+
+/**
+ * Something that contributes samples to the {@code /metrics} page, in Prometheus text format.
+ */
+interface MetricsSource {
+
+  void writeMetrics(StringBuilder out);
+
+  static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  static void sample(StringBuilder out, String name, String labels, double value) {
+    out.append(name);
+    if (labels != null) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ');
+    if (value == Math.rint(value) && !Double.isInfinite(value)) {
+      out.append((long) value);
+    } else {
+      out.append(value);
+    }
+    out.append('\n');
+  }
+
+  static void gauge(StringBuilder out, String name, String help, double value) {
+    header(out, name, "gauge", help);
+    sample(out, name, null, value);
+  }
+
+  static void counter(StringBuilder out, String name, String help, double value) {
+    header(out, name, "counter", help);
+    sample(out, name, null, value);
+  }
+}
@@ -0,0 +1,164 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.ByteString;
+import com.simonnordberg.cosmos.api.Movie;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable, indexed view of the movie catalog. A catalog is shared by all calls, so serving a
+ * request never rebuilds or copies catalog entries; changes produce a new catalog.
+ *
+ * <p>Movies are addressed by position. Positions are stable for the lifetime of a catalog and
+ * lie in [0, {@link #positions()}); a catalog with pending changes may leave some of them unused,
+ * so {@link #size()} can be smaller.
+ */
+abstract class MovieCatalog {
+
+  private static final AtomicLong GENERATIONS = new AtomicLong();
+
+  private final long version;
+  private final long generation = GENERATIONS.incrementAndGet();
+
+  MovieCatalog(long version) {
+    this.version = version;
+  }
+
+  static MovieCatalog of(Collection<Movie> movies) {
+    return IndexedCatalog.of(1, movies);
+  }
+
+  /**
+   * Opens a catalog backed by the memory-mapped {@link CatalogSnapshot} at {@code path}. Movie
+   * records stay off-heap; only the lookup indexes are built on the heap, see
+   * {@link IndexedCatalog} for how large a catalog a heap holds.
+   */
+  static MovieCatalog open(Path path, long version) throws IOException {
+    return IndexedCatalog.open(path, version);
+  }
+
+  /**
+   * Returns a rough upper bound of the heap needed to open the snapshot at {@code path}, which
+   * peaks while the indexes are built. Measured with synthetic catalogs of 100,000 to 1,000,000
+   * movies of about 100 file bytes each, opening a snapshot took 150 to 175 heap bytes per movie,
+   * most of it for the title indexes, which grow with the file; the estimate is 10 to 20% above
+   * that.
+   */
+  static long estimateHeapBytes(Path path) throws IOException {
+    return CatalogSnapshot.open(path).size() * 120L + Files.size(path) * 3 / 4;
+  }
+
+  /**
+   * Monotonically increasing version, bumped every time the catalog is reloaded or changed.
+   */
+  long version() {
+    return version;
+  }
+
+  /**
+   * Identifies this catalog instance, and with it the meaning of its positions. Versions describe
+   * content: a compacted store publishes the same version with its positions renumbered, so
+   * anything holding positions must be tagged with the generation instead.
+   */
+  long generation() {
+    return generation;
+  }
+
+  /**
+   * Returns the number of movies in the catalog.
+   */
+  abstract int size();
+
+  /**
+   * Returns the upper bound of the positions used by this catalog.
+   */
+  abstract int positions();
+
+  abstract Movie get(int index);
+
+  /**
+   * Returns the protobuf encoding of the movie at {@code index}. The bytes are shared and must not
+   * be modified.
+   */
+  abstract ByteString serialized(int index);
+
+  /**
+   * Returns the positions of all movies whose name contains {@code query}, ignoring case and
+   * accents, in catalog order.
+   */
+  abstract int[] search(String query);
+
+  /**
+   * Returns the positions of up to {@code k} movies whose name shares words with {@code query},
+   * ranked by BM25, best first. If {@code filter} is not {@code null}, only positions set in it
+   * are considered.
+   */
+  abstract int[] rank(String query, int k, BitSet filter);
+
+  /**
+   * Like {@link #rank(String, int, BitSet)}, and stores the score of every result at the same
+   * index of {@code scores}, which must have room for {@code k} results.
+   */
+  abstract int[] rank(String query, int k, BitSet filter, float[] scores);
+
+  /**
+   * Returns the BM25 score a movie with the given normalized title would have in this catalog, so
+   * that results of different catalogs can be merged into one ranking.
+   */
+  abstract float score(String query, String normalizedTitle);
+
+  /**
+   * Returns the positions of the movies matching the year range and genres, or {@code null} when
+   * the filter matches every movie. See {@link AttributeIndex#filter}.
+   */
+  abstract BitSet filter(int minYear, int maxYear, Collection<String> genres);
+
+  /**
+   * Returns a copy of {@code positions} ordered by popularity, most popular first.
+   */
+  abstract int[] sortByPopularity(int[] positions);
+
+  /**
+   * Finds {@code position} in positions ordered by {@link #sortByPopularity}, with the contract of
+   * {@link java.util.Arrays#binarySearch(int[], int)}.
+   */
+  abstract int popularitySearch(int[] sorted, int position);
+
+  /**
+   * Returns the positions of up to {@code k} of the best movies whose name starts with
+   * {@code prefix}, ignoring case and accents, best first.
+   */
+  abstract int[] suggest(String prefix, int k);
+
+  abstract float popularity(int index);
+
+  /**
+   * Returns the name of the movie at {@code index} normalized the way the indexes see it.
+   */
+  abstract String normalizedTitle(int index);
+
+  /**
+   * Returns the catalog position of the movie with the given id, or -1 if there is none.
+   */
+  abstract int indexOf(String id);
+
+  /**
+   * Returns whether {@code position} holds a movie of this catalog rather than one removed since
+   * the position was assigned.
+   */
+  boolean isLive(int position) {
+    return true;
+  }
+
+  /**
+   * Returns the movie with the given id, or {@code null} if there is none.
+   */
+  Movie findById(String id) {
+    int index = indexOf(id);
+    return index < 0 ? null : get(index);
+  }
+}
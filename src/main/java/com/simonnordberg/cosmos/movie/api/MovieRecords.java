@@ -0,0 +1,54 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import com.simonnordberg.cosmos.api.Movie;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Positional, read-only access to the movies backing a {@link MovieCatalog}.
+ */
+interface MovieRecords {
+
+  int size();
+
+  Movie get(int index);
+
+  /**
+   * Returns the protobuf encoding of the movie at {@code index} without copying it.
+   */
+  ByteString encoded(int index);
+
+  /**
+   * Returns the id of the movie at {@code index}, reading only that field of its encoding.
+   */
+  default String id(int index) {
+    return stringField(index, Movie.ID_FIELD_NUMBER);
+  }
+
+  /**
+   * Returns the name of the movie at {@code index}, reading only that field of its encoding.
+   */
+  default String name(int index) {
+    return stringField(index, Movie.NAME_FIELD_NUMBER);
+  }
+
+  private String stringField(int index, int number) {
+    // A tag is the field number followed by three bits of wire type.
+    int tag = number << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    try {
+      CodedInputStream input = encoded(index).newCodedInput();
+      for (int next = input.readTag(); next != 0; next = input.readTag()) {
+        if (next == tag) {
+          return input.readStringRequireUtf8();
+        }
+        input.skipField(next);
+      }
+      return "";
+    } catch (IOException e) {
+      throw new UncheckedIOException("Corrupt catalog record " + index, e);
+    }
+  }
+}
@@ -1,25 +1,56 @@
 package com.simonnordberg.cosmos.movie.api;
 
 import com.google.common.base.Strings;
+import com.google.protobuf.ByteString;
+import com.simonnordberg.cosmos.api.BatchMovieQuery;
+import com.simonnordberg.cosmos.api.CatalogChange;
 import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MovieBatch;
+import com.simonnordberg.cosmos.api.MovieLookupResult;
 import com.simonnordberg.cosmos.api.MovieQuery;
+import com.simonnordberg.cosmos.api.MovieServiceGrpc;
 import com.simonnordberg.cosmos.api.MovieServiceGrpc.MovieServiceImplBase;
+import com.simonnordberg.cosmos.api.MovieShardGrpc.MovieShardImplBase;
+import com.simonnordberg.cosmos.api.MovieSuggestions;
 import com.simonnordberg.cosmos.api.MoviesQuery;
-import io.grpc.Metadata;
+import com.simonnordberg.cosmos.api.SearchMode;
+import com.simonnordberg.cosmos.api.ShardKey;
+import com.simonnordberg.cosmos.api.ShardKeyRequest;
+import com.simonnordberg.cosmos.api.ShardMatch;
+import com.simonnordberg.cosmos.api.ShardSearchRequest;
+import com.simonnordberg.cosmos.api.SortOrder;
+import com.simonnordberg.cosmos.api.SuggestQuery;
+import com.simonnordberg.cosmos.api.WatchCatalogRequest;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.MethodDescriptor;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
-import io.grpc.ServerCall;
-import io.grpc.ServerCall.Listener;
-import io.grpc.ServerCallHandler;
-import io.grpc.ServerInterceptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
 import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.protobuf.services.HealthStatusManager;
 import io.grpc.protobuf.services.ProtoReflectionService;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 public class MovieServer {
@@ -27,27 +58,161 @@ public class MovieServer {
   private static final Logger logger = Logger.getLogger(MovieServer.class.getName());
 
   private Server server;
+  private CatalogReloader catalogReloader;
+  private MovieStore store;
+  private ChangeFeed changeFeed;
+  private AccessLog accessLog;
+  private MetricsHttpServer metricsServer;
+  private ExecutorService executor;
+  private NettyTransport transport;
+  private Server localShardServer;
+  private ShardRouter shardRouter;
 
   private void start() throws IOException {
-    int port = 50051;
+    int port = (int) Config.longValue("movie.port", 50051);
+    String catalogPath = Config.string("movie.catalog", null);
+    String storePath = Config.string("movie.store", null);
+    String shards = Config.string("movie.shards", null);
+    Supplier<MovieCatalog> catalog;
+    ShardRing ring = null;
+    int shardIndex = -1;
+    ShardRecords shardRecords = null;
+    IndexedCatalog shardCatalog = null;
+    if (shards != null) {
+      // Every server loads the full catalog once and keeps the movies its shard owns.
+      if (storePath != null) {
+        throw new IllegalStateException("movie.store is not supported with movie.shards");
+      }
+      ring = ShardRing.parse(shards);
+      shardIndex = (int) Config.longValue("movie.shard.index", -1);
+      if (shardIndex < 0 || shardIndex >= ring.shards()) {
+        throw new IllegalArgumentException(
+            "movie.shard.index must be between 0 and " + (ring.shards() - 1));
+      }
+      MovieRecords records = catalogPath == null ? new HeapMovieRecords(getMovies())
+          : CatalogSnapshot.open(Path.of(catalogPath));
+      shardRecords = ShardRecords.select(records, ring, shardIndex);
+      IndexedCatalog owned = IndexedCatalog.ofShard(1, shardRecords);
+      shardCatalog = owned;
+      catalog = () -> owned;
+    } else if (storePath != null) {
+      if (catalogPath != null) {
+        throw new IllegalStateException("movie.catalog and movie.store are mutually exclusive");
+      }
+      store = MovieStore.open(Path.of(storePath), getMovies(),
+          Config.longValue("movie.store.compact-after", 8192));
+      catalog = store;
+    } else if (catalogPath == null) {
+      MovieCatalog builtIn = MovieCatalog.of(getMovies());
+      catalog = () -> builtIn;
+    } else {
+      long budget = Config.longValue("movie.catalog.reload-budget-mb", 0) * 1024 * 1024;
+      catalogReloader = new CatalogReloader(Path.of(catalogPath), budget);
+      catalogReloader.start();
+      catalog = catalogReloader;
+    }
+    SearchCache searchCache = SearchCache.withMaxBytes(
+        Config.longValue("movie.search-cache.max-mb", 4) * 1024 * 1024);
+    SearchCoalescer searchCoalescer = new SearchCoalescer(searchCache,
+        !Config.string("movie.search-coalescing", "on").equals("off"));
+    MovieShardImpl shardService = null;
+    changeFeed = new ChangeFeed(catalog,
+        (int) Config.longValue("movie.watch.history", ChangeFeed.DEFAULT_HISTORY_SIZE),
+        (int) Config.longValue("movie.watch.buffer", ChangeFeed.DEFAULT_BUFFER_SIZE));
+    if (store != null) {
+      store.setCommitListener(changeFeed::publish);
+    } else if (catalogReloader != null) {
+      catalogReloader.setReloadListener(changeFeed::resync);
+    }
+    if (ring != null) {
+      // This server's own shard is searched in-process, like the others but without the network.
+      shardService = new MovieShardImpl(shardCatalog, shardRecords, searchCoalescer);
+      String localShard = "movie-shard-" + UUID.randomUUID();
+      localShardServer = InProcessServerBuilder.forName(localShard).addService(shardService)
+          .build().start();
+      shardRouter = new ShardRouter(ring, shardIndex,
+          InProcessChannelBuilder.forName(localShard).build(),
+          target -> ManagedChannelBuilder.forTarget(target).usePlaintext().build(),
+          Config.longValue("movie.shard.hedge-after-ms", 50));
+    }
     HealthStatusManager healthStatusManager = new HealthStatusManager();
-    server = ServerBuilder.forPort(port).addService(new MovieServiceImpl())
+    ServerBuilder<?> builder;
+    String transportProfile = Config.string("movie.transport", "tuned");
+    if (transportProfile.equals("default")) {
+      builder = ServerBuilder.forPort(port);
+    } else if (transportProfile.equals("tuned")) {
+      transport = NettyTransport.fromConfig();
+      builder = transport.serverBuilder(port);
+    } else {
+      throw new IllegalArgumentException("Unknown transport profile: " + transportProfile);
+    }
+    builder
+        .addService(new MovieServiceImpl(catalog, searchCoalescer, store, changeFeed,
+            shardRouter).bindEncodedService())
         .addService(healthStatusManager.getHealthService())
-        .addService(ProtoReflectionService.newInstance()).intercept(new ServerInterceptor() {
-          @Override
-          public <ReqT, RespT> Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> serverCall,
-              Metadata metadata, ServerCallHandler<ReqT, RespT> next) {
-            logger.info(String.format("""
-                    Received request ->
-                      MethodDescriptor (%s),
-                      Metadata (%s)
-                      Attributes (%s)""",
-                serverCall.getMethodDescriptor(), metadata, serverCall.getAttributes()));
-            logger.info(serverCall.getAttributes().toString());
-            return next.startCall(serverCall, metadata);
-          }
-        }).build().start();
-    logger.info("Server started, listening on " + port);
+        .addService(ProtoReflectionService.newInstance());
+    if (shardService != null) {
+      builder.addService(shardService);
+    }
+    ServerExecutor executorMode = ServerExecutor.parse(Config.string("movie.executor", "default"));
+    executor = executorMode.apply(builder, (int) Config.longValue("movie.executor.threads",
+        Runtime.getRuntime().availableProcessors() * 4L));
+    ConcurrencyLimiter admission = null;
+    if (!Config.string("movie.admission", "adaptive").equals("off")) {
+      // Watch streams last as long as the client wants; limiting them would starve other calls.
+      admission = new ConcurrencyLimiter(
+          (int) Config.longValue("movie.admission.initial-limit", 20),
+          (int) Config.longValue("movie.admission.max-limit", 200),
+          Set.of(MovieServiceGrpc.getWatchCatalogMethod().getFullMethodName()));
+      builder.intercept(admission);
+    }
+    String accessLogTarget = Config.string("movie.access-log", "-");
+    if (!accessLogTarget.equals("off")) {
+      accessLog = AccessLog.open(accessLogTarget,
+          (int) Config.longValue("movie.access-log.capacity", 8192));
+      builder.intercept(new AccessLogInterceptor(accessLog,
+          Config.doubleValue("movie.access-log.sample-rate", 1.0)));
+    }
+    RpcMetrics rpcMetrics = new RpcMetrics();
+    builder.intercept(rpcMetrics);
+    server = builder.build().start();
+    logger.info("Server started with " + catalog.get().size() + " movies, listening on " + port
+        + " with the " + executorMode.name().toLowerCase(Locale.ROOT) + " executor and the "
+        + (transport != null ? "tuned " + transport.describe() : "default transport"));
+    if (ring != null) {
+      logger.info("Serving shard " + shardIndex + " of " + ring.shards());
+    }
+
+    int metricsPort = (int) Config.longValue("movie.metrics.port", 9090);
+    if (metricsPort >= 0) {
+      MetricsSource catalogMetrics = out -> {
+        MovieCatalog current = catalog.get();
+        MetricsSource.gauge(out, "movie_catalog_version", "Version of the catalog being served.",
+            current.version());
+        MetricsSource.gauge(out, "movie_catalog_size", "Movies in the catalog being served.",
+            current.size());
+      };
+      metricsServer = new MetricsHttpServer(metricsPort).register(rpcMetrics)
+          .register(searchCache).register(searchCoalescer).register(catalogMetrics)
+          .register(changeFeed);
+      if (catalogReloader != null) {
+        metricsServer.register(catalogReloader);
+      }
+      if (store != null) {
+        metricsServer.register(store);
+      }
+      if (accessLog != null) {
+        metricsServer.register(accessLog);
+      }
+      if (admission != null) {
+        metricsServer.register(admission);
+      }
+      if (shardRouter != null) {
+        metricsServer.register(shardRouter);
+      }
+      metricsServer.start();
+      logger.info("Metrics available on port " + metricsServer.port());
+    }
     Runtime.getRuntime().addShutdownHook(new Thread(() -> {
       System.err.println("*** Shutting down gRPC server since JVM is shutting down");
       try {
@@ -61,7 +226,48 @@ public class MovieServer {
 
   private void stop() throws InterruptedException {
     if (server != null) {
-      server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
+      server.shutdown();
+      // Watch streams never end on their own.
+      if (changeFeed != null) {
+        changeFeed.close();
+      }
+      server.awaitTermination(30, TimeUnit.SECONDS);
+    }
+    if (shardRouter != null) {
+      shardRouter.close();
+    }
+    if (localShardServer != null) {
+      localShardServer.shutdownNow();
+    }
+    if (executor != null) {
+      executor.shutdown();
+    }
+    if (transport != null) {
+      transport.close();
+    }
+    if (metricsServer != null) {
+      metricsServer.close();
+    }
+    if (accessLog != null) {
+      try {
+        accessLog.close();
+      } catch (IOException e) {
+        logger.warning("Failed to close access log: " + e);
+      }
+    }
+    if (catalogReloader != null) {
+      try {
+        catalogReloader.close();
+      } catch (IOException e) {
+        logger.warning("Failed to stop catalog watcher: " + e);
+      }
+    }
+    if (store != null) {
+      try {
+        store.close();
+      } catch (IOException e) {
+        logger.warning("Failed to close catalog store: " + e);
+      }
     }
   }
 
@@ -79,9 +285,104 @@ public class MovieServer {
 
   static class MovieServiceImpl extends MovieServiceImplBase {
 
+    static final int MAX_BATCH_SIZE = 1000;
+    static final int LOOKUP_WINDOW = 64;
+    static final int DEFAULT_RANKED_RESULTS = 100;
+    static final int DEFAULT_SUGGESTIONS = 10;
+    static final int MAX_SUGGESTIONS = 50;
+
+    private final Supplier<MovieCatalog> catalogs;
+    private final SearchCoalescer searchCoalescer;
+    private final MovieStore store;
+    private final ChangeFeed changeFeed;
+    private final ShardRouter shardRouter;
+
+    MovieServiceImpl(MovieCatalog catalog) {
+      this(() -> catalog, SearchCache.none());
+    }
+
+    MovieServiceImpl(Supplier<MovieCatalog> catalogs, SearchCache searchCache) {
+      this(catalogs, new SearchCoalescer(searchCache, true), null, new ChangeFeed(catalogs,
+          ChangeFeed.DEFAULT_HISTORY_SIZE, ChangeFeed.DEFAULT_BUFFER_SIZE));
+    }
+
+    /**
+     * Serves the catalogs of {@code catalogs} and streams their changes from {@code changeFeed}.
+     * Accepts changes if {@code store} is not {@code null}, in which case it is {@code catalogs}.
+     */
+    MovieServiceImpl(Supplier<MovieCatalog> catalogs, SearchCoalescer searchCoalescer,
+        MovieStore store, ChangeFeed changeFeed) {
+      this(catalogs, searchCoalescer, store, changeFeed, null);
+    }
+
+    /**
+     * Like {@link #MovieServiceImpl(Supplier, SearchCoalescer, MovieStore, ChangeFeed)}, but if
+     * {@code shardRouter} is not {@code null}, {@code catalogs} only holds this server's shard:
+     * {@code GetMovie} and {@code GetMovies} are answered from all shards through the router, and
+     * methods that cannot be are unimplemented.
+     */
+    MovieServiceImpl(Supplier<MovieCatalog> catalogs, SearchCoalescer searchCoalescer,
+        MovieStore store, ChangeFeed changeFeed, ShardRouter shardRouter) {
+      this.catalogs = catalogs;
+      this.searchCoalescer = searchCoalescer;
+      this.store = store;
+      this.changeFeed = changeFeed;
+      this.shardRouter = shardRouter;
+    }
+
+    /**
+     * Like {@link #bindService()}, but {@code GetMovie} and {@code GetMovies} send the catalog's
+     * encoded movies through {@link EncodedMessageMarshaller} instead of re-encoding them for
+     * every response, and {@code WatchCatalog} sends the changes as the feed encoded them. The
+     * wire format and the schema seen by reflection are unchanged.
+     */
+    ServerServiceDefinition bindEncodedService() {
+      ServerServiceDefinition generated = bindService();
+      List<ServerMethodDefinition<?, ?>> methods = new ArrayList<>();
+      for (ServerMethodDefinition<?, ?> method : generated.getMethods()) {
+        String name = method.getMethodDescriptor().getFullMethodName();
+        if (name.equals(MovieServiceGrpc.getGetMovieMethod().getFullMethodName())) {
+          methods.add(ServerMethodDefinition.create(
+              encoded(MovieServiceGrpc.getGetMovieMethod()),
+              ServerCalls.asyncUnaryCall((request, responseObserver) -> getMovie(request,
+                  responseObserver, MovieCatalog::serialized, Function.identity()))));
+        } else if (name.equals(MovieServiceGrpc.getGetMoviesMethod().getFullMethodName())) {
+          methods.add(ServerMethodDefinition.create(
+              encoded(MovieServiceGrpc.getGetMoviesMethod()),
+              ServerCalls.asyncServerStreamingCall((request, responseObserver) -> getMovies(
+                  request, responseObserver, MovieCatalog::serialized, Function.identity()))));
+        } else if (name.equals(MovieServiceGrpc.getWatchCatalogMethod().getFullMethodName())) {
+          methods.add(ServerMethodDefinition.create(
+              encoded(MovieServiceGrpc.getWatchCatalogMethod()),
+              ServerCalls.asyncServerStreamingCall((request, responseObserver) -> watchCatalog(
+                  request, responseObserver, Function.identity()))));
+        } else {
+          methods.add(method);
+        }
+      }
+
+      ServiceDescriptor generatedService = generated.getServiceDescriptor();
+      ServiceDescriptor.Builder service = ServiceDescriptor.newBuilder(generatedService.getName())
+          .setSchemaDescriptor(generatedService.getSchemaDescriptor());
+      methods.forEach(method -> service.addMethod(method.getMethodDescriptor()));
+      ServerServiceDefinition.Builder definition = ServerServiceDefinition.builder(service.build());
+      methods.forEach(definition::addMethod);
+      return definition.build();
+    }
+
+    private static <ReqT, RespT> MethodDescriptor<ReqT, ByteString> encoded(
+        MethodDescriptor<ReqT, RespT> method) {
+      return method.toBuilder(method.getRequestMarshaller(), EncodedMessageMarshaller.INSTANCE)
+          .build();
+    }
+
     @Override
     public void getMovies(MoviesQuery request, StreamObserver<Movie> responseObserver) {
-      System.out.println("Received request: " + request);
+      getMovies(request, responseObserver, MovieCatalog::get, ShardRouter::parseMovie);
+    }
+
+    private <T> void getMovies(MoviesQuery request, StreamObserver<T> responseObserver,
+        Encoding<T> encoding, Function<ByteString, T> decode) {
       String query = request.getQuery();
 
       if (Strings.isNullOrEmpty(query)) {
@@ -90,14 +391,212 @@ public class MovieServer {
         return;
       }
 
-      MovieServer.getMovies().stream()
-          .filter(movie -> movie.getName().matches(String.format("(?i).*%s.*", query)))
-          .forEach(responseObserver::onNext);
-      responseObserver.onCompleted();
+      if (request.getLimit() < 0) {
+        Status status = Status.FAILED_PRECONDITION.withDescription("Limit must not be negative");
+        responseObserver.onError(status.asRuntimeException());
+        return;
+      }
+
+      if (request.getMode() == SearchMode.UNRECOGNIZED) {
+        Status status = Status.FAILED_PRECONDITION.withDescription("Unknown search mode");
+        responseObserver.onError(status.asRuntimeException());
+        return;
+      }
+
+      if (request.getOrder() == SortOrder.UNRECOGNIZED) {
+        Status status = Status.FAILED_PRECONDITION.withDescription("Unknown sort order");
+        responseObserver.onError(status.asRuntimeException());
+        return;
+      }
+
+      if (request.getMinYear() < 0 || request.getMaxYear() < 0 || (request.getMaxYear() != 0
+          && request.getMinYear() > request.getMaxYear())) {
+        Status status = Status.FAILED_PRECONDITION.withDescription("Invalid year range");
+        responseObserver.onError(status.asRuntimeException());
+        return;
+      }
+
+      if (request.getMode() == SearchMode.RANKED && !request.getPageToken().isEmpty()) {
+        Status status = Status.FAILED_PRECONDITION
+            .withDescription("Page tokens are not supported for ranked searches");
+        responseObserver.onError(status.asRuntimeException());
+        return;
+      }
+
+      if (shardRouter != null) {
+        shardRouter.search(request, (ServerCallStreamObserver<T>) responseObserver, decode);
+        return;
+      }
+
+      MovieCatalog catalog = catalogs.get();
+      BitSet filter = catalog.filter(request.getMinYear(), request.getMaxYear(),
+          request.getGenresList());
+      boolean byPopularity = request.getOrder() == SortOrder.POPULARITY;
+
+      ServerCallStreamObserver<T> movies = (ServerCallStreamObserver<T>) responseObserver;
+      SearchStream<T> stream = new SearchStream<>(movies, catalog, encoding);
+      movies.setOnCancelHandler(stream::cancel);
+      movies.setOnReadyHandler(stream::drain);
+      if (request.getMode() == SearchMode.RANKED) {
+        int[] matches = catalog.rank(query,
+            request.getLimit() == 0 ? DEFAULT_RANKED_RESULTS : request.getLimit(), filter);
+        if (byPopularity) {
+          matches = catalog.sortByPopularity(matches);
+        }
+        stream.start(matches, 0, matches.length);
+        return;
+      }
+      // A call that attached to an identical search in progress continues on the thread that
+      // runs it; the stream serializes that with the call's own callbacks.
+      searchCoalescer.search(catalog, query).whenComplete((matches, error) -> {
+        if (error != null) {
+          stream.fail(Status.fromThrowable(error));
+          return;
+        }
+        try {
+          page(request, stream, catalog, filter, byPopularity, matches);
+        } catch (RuntimeException e) {
+          stream.fail(Status.fromThrowable(e));
+        }
+      });
+    }
+
+    /**
+     * Starts streaming the page of substring {@code matches} that {@code request} asks for.
+     */
+    private static void page(MoviesQuery request, SearchStream<?> stream, MovieCatalog catalog,
+        BitSet filter, boolean byPopularity, int[] matches) {
+      if (filter != null) {
+        matches = AttributeIndex.retain(matches, filter);
+      }
+      if (byPopularity) {
+        matches = catalog.sortByPopularity(matches);
+      }
+      int start = 0;
+      if (!request.getPageToken().isEmpty()) {
+        int after = catalog.indexOf(request.getPageToken());
+        if (after < 0) {
+          stream.fail(Status.FAILED_PRECONDITION.withDescription("Unknown page token"));
+          return;
+        }
+        int position = byPopularity ? catalog.popularitySearch(matches, after)
+            : Arrays.binarySearch(matches, after);
+        start = position >= 0 ? position + 1 : -position - 1;
+      }
+      int end = request.getLimit() == 0 ? matches.length
+          : (int) Math.min(matches.length, (long) start + request.getLimit());
+      stream.start(matches, start, end);
+    }
+
+    /**
+     * Streams the results of one {@code GetMovies} call. Results are only written while the
+     * transport is ready, and the on-ready handler picks up where the last write stopped, so a
+     * slow or departed client never makes the server queue the whole result set. Writing stops
+     * as soon as the call is cancelled or its deadline passes.
+     *
+     * <p>The results may arrive on another call's thread when the search was coalesced, so whoever
+     * has work for the stream calls {@link #drain}: the first caller writes and later ones only
+     * make it go around once more, which keeps writes to the call serialized.
+     */
+    private static final class SearchStream<T> {
+
+      private final ServerCallStreamObserver<T> movies;
+      private final MovieCatalog catalog;
+      private final Encoding<T> encoding;
+      private final AtomicInteger pending = new AtomicInteger();
+      private volatile boolean done;
+      // Set once by start or fail, before they drain.
+      private int[] matches;
+      private int end;
+      private Status failure;
+      // Owned by the draining thread.
+      private int next;
+
+      SearchStream(ServerCallStreamObserver<T> movies, MovieCatalog catalog,
+          Encoding<T> encoding) {
+        this.movies = movies;
+        this.catalog = catalog;
+        this.encoding = encoding;
+      }
+
+      void start(int[] matches, int start, int end) {
+        this.matches = matches;
+        this.next = start;
+        this.end = end;
+        drain();
+      }
+
+      void fail(Status status) {
+        this.failure = status;
+        drain();
+      }
+
+      void cancel() {
+        done = true;
+      }
+
+      void drain() {
+        if (pending.getAndIncrement() != 0) {
+          return;
+        }
+        do {
+          try {
+            write();
+          } catch (RuntimeException e) {
+            abort(e);
+          }
+        } while (pending.decrementAndGet() != 0);
+      }
+
+      /**
+       * Ends the call after encoding or sending a result failed, so it does not hang until the
+       * client's deadline.
+       */
+      private void abort(RuntimeException e) {
+        if (done) {
+          return;
+        }
+        done = true;
+        try {
+          movies.onError(Status.fromThrowable(e)
+              .augmentDescription("Failed to send search results").asRuntimeException());
+        } catch (RuntimeException closed) {
+          // The call was closed under us; nothing more can be sent on it.
+        }
+      }
+
+      private void write() {
+        if (done) {
+          return;
+        }
+        if (failure != null) {
+          done = true;
+          movies.onError(failure.asRuntimeException());
+          return;
+        }
+        if (matches == null) {
+          return;
+        }
+        while (next < end && movies.isReady()) {
+          if (done || movies.isCancelled()) {
+            return;
+          }
+          movies.onNext(encoding.encode(catalog, matches[next++]));
+        }
+        if (next >= end) {
+          done = true;
+          movies.onCompleted();
+        }
+      }
     }
 
     @Override
     public void getMovie(MovieQuery request, StreamObserver<Movie> responseObserver) {
+      getMovie(request, responseObserver, MovieCatalog::get, ShardRouter::parseMovie);
+    }
+
+    private <T> void getMovie(MovieQuery request, StreamObserver<T> responseObserver,
+        Encoding<T> encoding, Function<ByteString, T> decode) {
       String id = request.getId();
       if (Strings.isNullOrEmpty(id)) {
         Status status = Status.FAILED_PRECONDITION.withDescription("Id is required");
@@ -105,15 +604,408 @@ public class MovieServer {
         return;
       }
 
-      MovieServer.getMovies().stream().filter(movie -> movie.getId().equals(id)).findFirst()
-          .ifPresentOrElse(responseObserver::onNext,
-              () -> responseObserver.onError(Status.NOT_FOUND.asRuntimeException()));
+      if (shardRouter != null && !shardRouter.owns(id)) {
+        shardRouter.getMovie(request, responseObserver, decode);
+        return;
+      }
+
+      MovieCatalog catalog = catalogs.get();
+      int index = catalog.indexOf(id);
+      if (index < 0) {
+        responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+        return;
+      }
+
+      responseObserver.onNext(encoding.encode(catalog, index));
       responseObserver.onCompleted();
     }
+
+    @Override
+    public void batchGetMovies(BatchMovieQuery request,
+        StreamObserver<MovieBatch> responseObserver) {
+      if (sharded(responseObserver)) {
+        return;
+      }
+      int count = request.getIdsCount();
+      if (count == 0) {
+        Status status = Status.FAILED_PRECONDITION.withDescription("Ids are required");
+        responseObserver.onError(status.asRuntimeException());
+        return;
+      }
+      if (count > MAX_BATCH_SIZE) {
+        Status status = Status.FAILED_PRECONDITION
+            .withDescription("At most " + MAX_BATCH_SIZE + " ids are allowed per batch");
+        responseObserver.onError(status.asRuntimeException());
+        return;
+      }
+
+      MovieCatalog catalog = catalogs.get();
+      List<Movie> movies = new ArrayList<>(count);
+      List<String> missing = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        String id = request.getIds(i);
+        Movie movie = catalog.findById(id);
+        if (movie == null) {
+          missing.add(id);
+        } else {
+          movies.add(movie);
+        }
+      }
+
+      responseObserver.onNext(
+          MovieBatch.newBuilder().addAllMovies(movies).addAllMissingIds(missing).build());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void suggestMovies(SuggestQuery request,
+        StreamObserver<MovieSuggestions> responseObserver) {
+      if (sharded(responseObserver)) {
+        return;
+      }
+      if (Strings.isNullOrEmpty(request.getPrefix())) {
+        Status status = Status.FAILED_PRECONDITION.withDescription("Prefix is required");
+        responseObserver.onError(status.asRuntimeException());
+        return;
+      }
+      if (request.getLimit() < 0 || request.getLimit() > MAX_SUGGESTIONS) {
+        Status status = Status.FAILED_PRECONDITION
+            .withDescription("Limit must be between 0 and " + MAX_SUGGESTIONS);
+        responseObserver.onError(status.asRuntimeException());
+        return;
+      }
+
+      MovieCatalog catalog = catalogs.get();
+      int limit = request.getLimit() == 0 ? DEFAULT_SUGGESTIONS : request.getLimit();
+      MovieSuggestions.Builder suggestions = MovieSuggestions.newBuilder();
+      for (int index : catalog.suggest(request.getPrefix(), limit)) {
+        suggestions.addMovies(catalog.get(index));
+      }
+      responseObserver.onNext(suggestions.build());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void createMovie(Movie request, StreamObserver<Movie> responseObserver) {
+      if (!writable(responseObserver) || !valid(request, false, responseObserver)) {
+        return;
+      }
+      Movie movie = request.getId().isEmpty()
+          ? request.toBuilder().setId(UUID.randomUUID().toString()).build() : request;
+      respond(store.create(movie), responseObserver);
+    }
+
+    @Override
+    public void updateMovie(Movie request, StreamObserver<Movie> responseObserver) {
+      if (!writable(responseObserver) || !valid(request, true, responseObserver)) {
+        return;
+      }
+      respond(store.update(request), responseObserver);
+    }
+
+    @Override
+    public void deleteMovie(MovieQuery request, StreamObserver<Movie> responseObserver) {
+      if (!writable(responseObserver)) {
+        return;
+      }
+      if (Strings.isNullOrEmpty(request.getId())) {
+        Status status = Status.FAILED_PRECONDITION.withDescription("Id is required");
+        responseObserver.onError(status.asRuntimeException());
+        return;
+      }
+      respond(store.delete(request.getId()), responseObserver);
+    }
+
+    @Override
+    public void watchCatalog(WatchCatalogRequest request,
+        StreamObserver<CatalogChange> responseObserver) {
+      watchCatalog(request, responseObserver, ChangeFeed::parse);
+    }
+
+    private <T> void watchCatalog(WatchCatalogRequest request, StreamObserver<T> responseObserver,
+        Function<ByteString, T> decode) {
+      if (sharded(responseObserver)) {
+        return;
+      }
+      if (request.getFromVersion() < 0) {
+        Status status = Status.FAILED_PRECONDITION
+            .withDescription("Version must not be negative");
+        responseObserver.onError(status.asRuntimeException());
+        return;
+      }
+      changeFeed.subscribe(request.getFromVersion(),
+          (ServerCallStreamObserver<T>) responseObserver, decode);
+    }
+
+    /**
+     * Fails the call of a method that only sees this server's shard of a sharded catalog.
+     */
+    private boolean sharded(StreamObserver<?> responseObserver) {
+      if (shardRouter != null) {
+        Status status = Status.UNIMPLEMENTED
+            .withDescription("Not supported by a sharded server");
+        responseObserver.onError(status.asRuntimeException());
+        return true;
+      }
+      return false;
+    }
+
+    private boolean writable(StreamObserver<?> responseObserver) {
+      if (store == null) {
+        Status status = Status.FAILED_PRECONDITION.withDescription("The catalog is read-only");
+        responseObserver.onError(status.asRuntimeException());
+        return false;
+      }
+      return true;
+    }
+
+    private static boolean valid(Movie movie, boolean idRequired,
+        StreamObserver<?> responseObserver) {
+      String problem = null;
+      if (idRequired && movie.getId().isEmpty()) {
+        problem = "Id is required";
+      } else if (movie.getName().isBlank()) {
+        problem = "Name is required";
+      } else if (movie.getYear() < 0 || movie.getRuntimeMinutes() < 0) {
+        problem = "Year and runtime must not be negative";
+      } else if (!Float.isFinite(movie.getPopularity())) {
+        problem = "Popularity must be a finite number";
+      }
+      if (problem != null) {
+        responseObserver.onError(
+            Status.FAILED_PRECONDITION.withDescription(problem).asRuntimeException());
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Completes the call when the store has made the change durable. This runs on the store's
+     * writer thread, which is fine for a unary response.
+     */
+    private static void respond(CompletableFuture<Movie> result,
+        StreamObserver<Movie> responseObserver) {
+      result.whenComplete((movie, error) -> {
+        if (error != null) {
+          responseObserver.onError(Status.fromThrowable(error).asRuntimeException());
+        } else {
+          responseObserver.onNext(movie);
+          responseObserver.onCompleted();
+        }
+      });
+    }
+
+    @Override
+    public StreamObserver<MovieQuery> lookupMovies(
+        StreamObserver<MovieLookupResult> responseObserver) {
+      ServerCallStreamObserver<MovieLookupResult> results =
+          (ServerCallStreamObserver<MovieLookupResult>) responseObserver;
+      if (sharded(results)) {
+        return new StreamObserver<>() {
+          @Override
+          public void onNext(MovieQuery query) {
+          }
+
+          @Override
+          public void onError(Throwable t) {
+          }
+
+          @Override
+          public void onCompleted() {
+          }
+        };
+      }
+      results.disableAutoRequest();
+      LookupStream stream = new LookupStream(results);
+      results.setOnReadyHandler(stream::requestMore);
+      return stream;
+    }
+
+    /**
+     * Serves one {@code LookupMovies} call. Ids are requested from the client in windows of
+     * {@link #LOOKUP_WINDOW}, and only while the outbound side is ready, so a slow reader stops
+     * the client from sending rather than making the server buffer results. Answering a whole
+     * window before asking for the next also lets the transport flush results in batches.
+     * All callbacks run serialized on the call's executor.
+     */
+    private final class LookupStream implements StreamObserver<MovieQuery> {
+
+      private final ServerCallStreamObserver<MovieLookupResult> results;
+      private int pending;
+
+      LookupStream(ServerCallStreamObserver<MovieLookupResult> results) {
+        this.results = results;
+      }
+
+      void requestMore() {
+        if (pending == 0 && results.isReady()) {
+          pending = LOOKUP_WINDOW;
+          results.request(LOOKUP_WINDOW);
+        }
+      }
+
+      @Override
+      public void onNext(MovieQuery query) {
+        pending--;
+        String id = query.getId();
+        MovieLookupResult.Builder result = MovieLookupResult.newBuilder().setId(id);
+        Movie movie = Strings.isNullOrEmpty(id) ? null : catalogs.get().findById(id);
+        if (movie != null) {
+          result.setMovie(movie);
+        }
+        results.onNext(result.build());
+        requestMore();
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        // The client cancelled; there is nothing left to send.
+      }
+
+      @Override
+      public void onCompleted() {
+        results.onCompleted();
+      }
+    }
+
+    /**
+     * How a catalog entry is turned into a response message.
+     */
+    private interface Encoding<T> {
+
+      T encode(MovieCatalog catalog, int index);
+    }
+  }
+
+  /**
+   * Serves the movies of one shard to the {@link ShardRouter}s of a sharded deployment. Queries
+   * arrive already validated by the server the client called. Every match carries its
+   * {@link ShardKey}, so the router can merge the shards into the order of an unsharded server.
+   */
+  static final class MovieShardImpl extends MovieShardImplBase {
+
+    private final IndexedCatalog catalog;
+    private final ShardRecords records;
+    private final SearchCoalescer searchCoalescer;
+
+    /**
+     * @param catalog the catalog of {@code records}
+     */
+    MovieShardImpl(IndexedCatalog catalog, ShardRecords records,
+        SearchCoalescer searchCoalescer) {
+      this.catalog = catalog;
+      this.records = records;
+      this.searchCoalescer = searchCoalescer;
+    }
+
+    @Override
+    public void searchShard(ShardSearchRequest request,
+        StreamObserver<ShardMatch> responseObserver) {
+      MoviesQuery query = request.getQuery();
+      BitSet filter = catalog.filter(query.getMinYear(), query.getMaxYear(),
+          query.getGenresList());
+      boolean byPopularity = query.getOrder() == SortOrder.POPULARITY;
+      ServerCallStreamObserver<ShardMatch> matches =
+          (ServerCallStreamObserver<ShardMatch>) responseObserver;
+      if (query.getMode() == SearchMode.RANKED) {
+        // Sent best match first whatever the order; the router sorts the merged top matches by
+        // popularity if asked to.
+        int k = query.getLimit() == 0 ? MovieServiceImpl.DEFAULT_RANKED_RESULTS
+            : query.getLimit();
+        float[] scores = new float[k];
+        int[] ranked = catalog.rank(query.getQuery(), k, filter, scores);
+        int[] ranks = new int[ranked.length];
+        for (int i = 0; i < ranks.length; i++) {
+          ranks[i] = i;
+        }
+        MovieServiceImpl.SearchStream<ShardMatch> stream = new MovieServiceImpl.SearchStream<>(
+            matches, catalog, (shard, rank) -> match(scores[rank], ranked[rank]));
+        matches.setOnCancelHandler(stream::cancel);
+        matches.setOnReadyHandler(stream::drain);
+        stream.start(ranks, 0, ranks.length);
+        return;
+      }
+
+      MovieServiceImpl.SearchStream<ShardMatch> stream = new MovieServiceImpl.SearchStream<>(
+          matches, catalog,
+          (shard, index) -> match(byPopularity ? catalog.popularity(index) : 0, index));
+      matches.setOnCancelHandler(stream::cancel);
+      matches.setOnReadyHandler(stream::drain);
+      searchCoalescer.search(catalog, query.getQuery()).whenComplete((found, error) -> {
+        if (error != null) {
+          stream.fail(Status.fromThrowable(error));
+          return;
+        }
+        int[] page = filter == null ? found : AttributeIndex.retain(found, filter);
+        if (byPopularity) {
+          page = catalog.sortByPopularity(page);
+        }
+        int start = request.hasAfter() ? after(page, request.getAfter(), byPopularity) : 0;
+        int end = query.getLimit() == 0 ? page.length
+            : (int) Math.min(page.length, (long) start + query.getLimit());
+        stream.start(page, start, end);
+      });
+    }
+
+    /**
+     * Returns the index of the first of {@code matches}, in merge order, that comes after
+     * {@code key}.
+     */
+    private int after(int[] matches, ShardKey key, boolean byPopularity) {
+      int low = 0;
+      int high = matches.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        int index = matches[middle];
+        if (ShardRouter.compare(byPopularity ? catalog.popularity(index) : 0,
+            records.catalogPosition(index), key) <= 0) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+
+    @Override
+    public void getShardKey(ShardKeyRequest request, StreamObserver<ShardKey> responseObserver) {
+      int index = catalog.indexOf(request.getId());
+      if (index < 0) {
+        responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+        return;
+      }
+      responseObserver.onNext(key(
+          request.getOrder() == SortOrder.POPULARITY ? catalog.popularity(index) : 0, index));
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void getShardMovie(MovieQuery request, StreamObserver<Movie> responseObserver) {
+      int index = catalog.indexOf(request.getId());
+      if (index < 0) {
+        responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+        return;
+      }
+      responseObserver.onNext(catalog.get(index));
+      responseObserver.onCompleted();
+    }
+
+    private ShardMatch match(double rank, int index) {
+      return ShardMatch.newBuilder().setKey(key(rank, index)).setMovie(catalog.serialized(index))
+          .build();
+    }
+
+    private ShardKey key(double rank, int index) {
+      return ShardKey.newBuilder().setRank(rank).setPosition(records.catalogPosition(index))
+          .build();
+    }
   }
 
-  private static List<Movie> getMovies() {
-    return Arrays.asList(
+  /**
+   * Returns the built-in catalog, served when no catalog or store is configured.
+   */
+  static List<Movie> getMovies() {
+    return CatalogConverter.withYearsFromNames(Arrays.asList(
         Movie.newBuilder().setId("01d3ca56-94c0-4452-bd5b-e55ed7302f62").setName("Vertigo (1958)")
             .build(),
 
@@ -733,6 +1625,6 @@ public class MovieServer {
             .setName("Mulholland Dr. (2001)").build(),
 
         Movie.newBuilder().setId("28d46c48-67ba-4f03-a973-fa5c4bfdf5f1")
-            .setName("The Man Who Shot Liberty Valance (1962)").build());
+            .setName("The Man Who Shot Liberty Valance (1962)").build()));
   }
 }
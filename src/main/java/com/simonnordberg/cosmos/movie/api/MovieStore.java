@@ -0,0 +1,506 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.simonnordberg.cosmos.api.Movie;
+import io.grpc.Status;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent, writable catalog kept in a directory as a {@link CatalogSnapshot} plus a
+ * {@link ChangeLog} of the changes made since.
+ *
+ * <p>Writes are queued to a single writer thread, which takes whatever has queued up as one
+ * batch: it validates the batch against the current catalog, appends it to the log, forces the log
+ * to disk once for the whole batch and only then publishes a new catalog and answers the callers.
+ * Under load the cost of {@code fsync} is shared by every write of a batch. Published catalogs are
+ * {@link LayeredCatalog}s over the snapshot, so a batch only indexes its own changes and the small
+ * layers it merges with.
+ *
+ * <p>Once enough changes have accumulated the writer compacts: it starts a new log segment and
+ * hands the current catalog to a compactor thread, which writes it as a new snapshot, indexes it
+ * and removes the old files while writes go on. The writer then swaps in the new snapshot with the
+ * changes made in the meantime layered on top. On open the latest snapshot is loaded and the log
+ * segments are replayed on top of it; a record torn by a crash is truncated away, so what was
+ * acknowledged is recovered and what was not is dropped.
+ *
+ * <p>File names carry the sequence number of the last change they include
+ * ({@code snapshot-N.bin}) or follow ({@code changes-N.log}).
+ */
+final class MovieStore implements Supplier<MovieCatalog>, AutoCloseable, MetricsSource {
+
+  private static final Logger logger = Logger.getLogger(MovieStore.class.getName());
+  private static final Pattern SNAPSHOT = Pattern.compile("snapshot-(\\d+)\\.bin");
+  private static final Pattern LOG = Pattern.compile("changes-(\\d+)\\.log");
+  private static final int MAX_BATCH_SIZE = 1024;
+  private static final Write CLOSE = new Write(null, null, null);
+  private static final Write COMPACTED = new Write(null, null, null);
+
+  /**
+   * Receives every committed batch of changes on the writer thread, after the catalog that
+   * includes them has been published and before the writes are acknowledged.
+   */
+  interface CommitListener {
+
+    /**
+     * @param changes ids of the changed movies mapped to their new contents, or to {@code null}
+     *     if they were removed
+     */
+    void committed(long previousVersion, long version, Map<String, Movie> changes);
+  }
+
+  private enum Operation {
+    CREATE, UPDATE, DELETE
+  }
+
+  private final Path directory;
+  private final long compactAfter;
+  private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+  private final Thread writer;
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong commits = new AtomicLong();
+  private final AtomicLong compactions = new AtomicLong();
+  private final long recoveryNanos;
+  private volatile MovieCatalog catalog;
+  private volatile long sequence;
+  private volatile long logBytes;
+  private volatile long lastCompactionNanos;
+  private volatile boolean closed;
+  private volatile Thread compactor;
+  private volatile IndexedCatalog compacted;
+  private volatile CommitListener listener = (previousVersion, version, changes) -> {
+  };
+  // Owned by the writer thread after construction.
+  private ChangeLog log;
+  private long changesSinceSnapshot;
+  private IOException failure;
+  // Changes committed since the snapshot being compacted, or null if none is.
+  private Map<String, Movie> sinceCompaction;
+
+  private MovieStore(Path directory, long compactAfter, Collection<Movie> seed)
+      throws IOException {
+    this.directory = directory;
+    this.compactAfter = compactAfter;
+    long start = System.nanoTime();
+    Files.createDirectories(directory);
+
+    TreeMap<Long, Path> snapshots = list(SNAPSHOT);
+    if (snapshots.isEmpty()) {
+      CatalogSnapshot.write(new ArrayList<>(seed), directory.resolve(snapshotName(0)));
+      syncDirectory();
+      snapshots = list(SNAPSHOT);
+    }
+    long snapshotSequence = snapshots.lastKey();
+    MovieCatalog recovered = IndexedCatalog.open(snapshots.lastEntry().getValue(),
+        snapshotSequence);
+
+    Map<String, Movie> changes = new LinkedHashMap<>();
+    long last = snapshotSequence;
+    for (Path segment : list(LOG).values()) {
+      last = Math.max(last, ChangeLog.replay(segment, snapshotSequence,
+          (sequence, id, movie) -> {
+            changes.remove(id);
+            changes.put(id, movie);
+            changesSinceSnapshot++;
+          }));
+    }
+    if (!changes.isEmpty()) {
+      recovered = LayeredCatalog.apply(recovered, last, changes);
+    }
+    this.catalog = recovered;
+    this.sequence = last;
+    this.log = ChangeLog.open(directory.resolve(logName(last)));
+    syncDirectory();
+    this.logBytes = log.size();
+    this.recoveryNanos = System.nanoTime() - start;
+    logger.info("Recovered catalog store " + directory + " at sequence " + last + " with "
+        + recovered.size() + " movies, " + changesSinceSnapshot + " changes replayed, in "
+        + TimeUnit.NANOSECONDS.toMillis(recoveryNanos) + " ms");
+
+    this.writer = new Thread(this::run, "catalog-store-writer");
+    this.writer.setDaemon(true);
+  }
+
+  /**
+   * Opens the store in {@code directory}, recovering its state, and starts the writer thread.
+   *
+   * @param seed movies of a store that does not exist yet
+   * @param compactAfter number of changes after which a new snapshot is written
+   */
+  static MovieStore open(Path directory, Collection<Movie> seed, long compactAfter)
+      throws IOException {
+    MovieStore store = new MovieStore(directory.toAbsolutePath(), Math.max(1, compactAfter), seed);
+    store.writer.start();
+    return store;
+  }
+
+  @Override
+  public MovieCatalog get() {
+    return catalog;
+  }
+
+  /**
+   * Adds {@code movie}. Completes with the stored movie once it is durable, or fails with
+   * {@code ALREADY_EXISTS} if a movie with its id exists.
+   */
+  CompletableFuture<Movie> create(Movie movie) {
+    return submit(new Write(Operation.CREATE, movie.getId(), movie));
+  }
+
+  /**
+   * Replaces the movie with the id of {@code movie}. Completes with the stored movie once it is
+   * durable, or fails with {@code NOT_FOUND} if there is no such movie.
+   */
+  CompletableFuture<Movie> update(Movie movie) {
+    return submit(new Write(Operation.UPDATE, movie.getId(), movie));
+  }
+
+  /**
+   * Removes the movie with {@code id}. Completes with the removed movie once the removal is
+   * durable, or fails with {@code NOT_FOUND} if there is no such movie.
+   */
+  CompletableFuture<Movie> delete(String id) {
+    return submit(new Write(Operation.DELETE, id, null));
+  }
+
+  /**
+   * Sets the listener told about every batch committed from now on. Catalog versions of the store
+   * are the sequence numbers of their last change.
+   */
+  void setCommitListener(CommitListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Sequence number of the last change made durable.
+   */
+  long sequence() {
+    return sequence;
+  }
+
+  @Override
+  public void writeMetrics(StringBuilder out) {
+    MetricsSource.counter(out, "movie_store_writes_total", "Catalog changes made durable.",
+        writes.get());
+    MetricsSource.counter(out, "movie_store_commits_total",
+        "Batches of changes forced to disk together.", commits.get());
+    MetricsSource.gauge(out, "movie_store_sequence", "Sequence number of the last change.",
+        sequence);
+    MetricsSource.gauge(out, "movie_store_log_bytes", "Size of the current change log segment.",
+        logBytes);
+    MetricsSource.counter(out, "movie_store_compactions_total",
+        "Snapshots written to compact the change log.", compactions.get());
+    MetricsSource.gauge(out, "movie_store_last_compaction_seconds",
+        "Duration of the last compaction.",
+        lastCompactionNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    MovieCatalog current = catalog;
+    MetricsSource.gauge(out, "movie_store_layers",
+        "Layers of the published catalog, counting the snapshot.",
+        current instanceof LayeredCatalog ? ((LayeredCatalog) current).depth() : 1);
+    MetricsSource.gauge(out, "movie_store_recovery_seconds",
+        "Time taken to recover the store on startup.",
+        recoveryNanos / (double) TimeUnit.SECONDS.toNanos(1));
+  }
+
+  /**
+   * Stops accepting writes, waits for the queued ones and any compaction to finish and closes the
+   * log.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    queue.add(CLOSE);
+    try {
+      writer.join();
+      Thread running = compactor;
+      if (running != null) {
+        running.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    log.close();
+  }
+
+  private CompletableFuture<Movie> submit(Write write) {
+    if (closed) {
+      write.result.completeExceptionally(
+          Status.UNAVAILABLE.withDescription("Catalog store is closed").asRuntimeException());
+    } else {
+      queue.add(write);
+    }
+    return write.result;
+  }
+
+  private void run() {
+    List<Write> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    try {
+      if (changesSinceSnapshot >= compactAfter) {
+        compact();
+      }
+      while (true) {
+        batch.add(queue.take());
+        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+        boolean compactionDone = batch.remove(COMPACTED);
+        int close = batch.indexOf(CLOSE);
+        if (close >= 0) {
+          // Writes queued behind the close marker raced with close(); refuse them too.
+          List<Write> rejected = new ArrayList<>(batch.subList(close + 1, batch.size()));
+          queue.drainTo(rejected);
+          batch.subList(close, batch.size()).clear();
+          commit(batch);
+          rejected.forEach(write -> write.result.completeExceptionally(
+              Status.UNAVAILABLE.withDescription("Catalog store is closed")
+                  .asRuntimeException()));
+          return;
+        }
+        commit(batch);
+        batch.clear();
+        if (compactionDone) {
+          finishCompaction();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void commit(List<Write> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    if (failure != null) {
+      fail(batch, failure);
+      return;
+    }
+
+    MovieCatalog current = catalog;
+    Map<String, Movie> changes = new LinkedHashMap<>();
+    List<Write> accepted = new ArrayList<>(batch.size());
+    long next = sequence;
+    for (Write write : batch) {
+      Movie existing = changes.containsKey(write.id) ? changes.get(write.id)
+          : current.findById(write.id);
+      if (write.operation == Operation.CREATE && existing != null) {
+        write.result.completeExceptionally(Status.ALREADY_EXISTS
+            .withDescription("Movie " + write.id + " already exists").asRuntimeException());
+        continue;
+      }
+      if (write.operation != Operation.CREATE && existing == null) {
+        write.result.completeExceptionally(Status.NOT_FOUND.asRuntimeException());
+        continue;
+      }
+      write.stored = write.operation == Operation.DELETE ? existing : write.movie;
+      changes.remove(write.id);
+      changes.put(write.id, write.movie);
+      log.append(++next, write.id, write.movie);
+      accepted.add(write);
+    }
+    if (accepted.isEmpty()) {
+      return;
+    }
+
+    try {
+      log.commit();
+    } catch (IOException e) {
+      // The log may now end in a partial batch; recovery on restart truncates it.
+      failure = e;
+      logger.log(Level.SEVERE, "Failed to write the catalog change log, refusing writes", e);
+      fail(accepted, e);
+      return;
+    }
+    long previous = sequence;
+    catalog = LayeredCatalog.apply(current, next, changes);
+    sequence = next;
+    logBytes = log.size();
+    writes.addAndGet(accepted.size());
+    commits.incrementAndGet();
+    if (sinceCompaction != null) {
+      changes.forEach((id, movie) -> {
+        sinceCompaction.remove(id);
+        sinceCompaction.put(id, movie);
+      });
+    }
+    try {
+      listener.committed(previous, next, changes);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Commit listener failed", e);
+    }
+    for (Write write : accepted) {
+      write.result.complete(write.stored);
+    }
+
+    changesSinceSnapshot += accepted.size();
+    if (changesSinceSnapshot >= compactAfter && sinceCompaction == null) {
+      compact();
+    }
+  }
+
+  /**
+   * Switches to a new log segment and starts a compactor thread that writes the current catalog as
+   * a new snapshot. Failures leave the old files in place and are retried after the next batch.
+   */
+  private void compact() {
+    long snapshotSequence = sequence;
+    MovieCatalog current = catalog;
+    try {
+      ChangeLog next = ChangeLog.open(directory.resolve(logName(snapshotSequence)));
+      syncDirectory();
+      log.close();
+      log = next;
+      logBytes = log.size();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to compact catalog store " + directory, e);
+      return;
+    }
+    sinceCompaction = new LinkedHashMap<>();
+    Thread thread = new Thread(() -> writeSnapshot(current, snapshotSequence),
+        "catalog-store-compactor");
+    thread.setDaemon(true);
+    compactor = thread;
+    thread.start();
+  }
+
+  /**
+   * Runs on the compactor thread: writes and indexes the snapshot, removes the files it makes
+   * obsolete and tells the writer. Changes after {@code snapshotSequence} are already in the new
+   * log segment, which is kept.
+   */
+  private void writeSnapshot(MovieCatalog current, long snapshotSequence) {
+    long start = System.nanoTime();
+    IndexedCatalog base = null;
+    try {
+      Path snapshot = directory.resolve(snapshotName(snapshotSequence));
+      CatalogSnapshot.write(liveMovies(current), snapshot);
+      syncDirectory();
+      base = IndexedCatalog.open(snapshot, snapshotSequence);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to compact catalog store " + directory, e);
+    }
+
+    if (base != null) {
+      try {
+        for (Map.Entry<Long, Path> file : list(SNAPSHOT).headMap(snapshotSequence).entrySet()) {
+          Files.deleteIfExists(file.getValue());
+        }
+        for (Map.Entry<Long, Path> file : list(LOG).headMap(snapshotSequence).entrySet()) {
+          Files.deleteIfExists(file.getValue());
+        }
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to remove obsolete files from " + directory, e);
+      }
+      lastCompactionNanos = System.nanoTime() - start;
+      compactions.incrementAndGet();
+      logger.info("Compacted catalog store at sequence " + snapshotSequence + " with "
+          + current.size() + " movies in " + TimeUnit.NANOSECONDS.toMillis(lastCompactionNanos)
+          + " ms");
+    }
+    compacted = base;
+    queue.add(COMPACTED);
+  }
+
+  /**
+   * Runs on the writer thread once the compactor is done: publishes the new snapshot with the
+   * changes committed since it was taken applied on top.
+   */
+  private void finishCompaction() {
+    IndexedCatalog base = compacted;
+    Map<String, Movie> changes = sinceCompaction;
+    compacted = null;
+    sinceCompaction = null;
+    compactor = null;
+    if (base == null) {
+      return;
+    }
+    catalog = changes.isEmpty() ? base : LayeredCatalog.apply(base, sequence, changes);
+    changesSinceSnapshot = sequence - base.version();
+  }
+
+  private static List<Movie> liveMovies(MovieCatalog catalog) {
+    List<Movie> movies = new ArrayList<>(catalog.size());
+    for (int i = 0; i < catalog.positions(); i++) {
+      if (catalog.isLive(i)) {
+        movies.add(catalog.get(i));
+      }
+    }
+    return movies;
+  }
+
+  private static void fail(List<Write> writes, IOException cause) {
+    for (Write write : writes) {
+      write.result.completeExceptionally(Status.UNAVAILABLE
+          .withDescription("Catalog store failed: " + cause.getMessage()).withCause(cause)
+          .asRuntimeException());
+    }
+  }
+
+  private TreeMap<Long, Path> list(Pattern pattern) throws IOException {
+    TreeMap<Long, Path> files = new TreeMap<>();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+      for (Path entry : entries) {
+        Matcher matcher = pattern.matcher(entry.getFileName().toString());
+        if (matcher.matches()) {
+          files.put(Long.parseLong(matcher.group(1)), entry);
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Makes created and renamed files in the directory durable.
+   */
+  private void syncDirectory() {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // Not supported on every platform; the files themselves are already forced.
+      logger.fine("Could not sync directory " + directory + ": " + e);
+    }
+  }
+
+  private static String snapshotName(long sequence) {
+    return String.format("snapshot-%020d.bin", sequence);
+  }
+
+  private static String logName(long sequence) {
+    return String.format("changes-%020d.log", sequence);
+  }
+
+  private static final class Write {
+
+    final Operation operation;
+    final String id;
+    final Movie movie;
+    final CompletableFuture<Movie> result = new CompletableFuture<>();
+    Movie stored;
+
+    Write(Operation operation, String id, Movie movie) {
+      this.operation = operation;
+      this.id = id;
+      this.movie = movie;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.buffer.PooledByteBufAllocator;
+import io.grpc.netty.shaded.io.netty.channel.ChannelOption;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.ServerChannel;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The tuned Netty transport the server listens on, with its event loops and buffer pool sized for
+ * a small container rather than for the host.
+ *
+ * <p>All settings are read through {@link Config}:
+ * <ul>
+ *   <li>{@code movie.netty.epoll}: {@code auto} uses the native epoll transport when it loads,
+ *       which it does not on musl-based images without glibc compatibility; {@code off} always
+ *       uses NIO.
+ *   <li>{@code movie.netty.boss-threads} (1) accept connections; {@code movie.netty.worker-threads}
+ *       (the processors the JVM sees, which follows the container's CPU quota) serve them.
+ *   <li>{@code movie.netty.direct-arenas} (one per worker thread) sizes the pooled direct
+ *       allocator. Netty's default of two arenas per processor, each growing in 4 MiB chunks, is
+ *       meant for hosts, not a 64 MB container.
+ *   <li>{@code movie.netty.flow-control-window-kb} (256) is the initial HTTP/2 window per stream;
+ *       gRPC still grows it from the measured bandwidth-delay product.
+ *   <li>{@code movie.netty.max-concurrent-streams} (100) calls per connection.
+ *   <li>{@code movie.netty.keepalive-time-s} (60) and {@code movie.netty.keepalive-timeout-s} (20)
+ *       for server pings; {@code movie.netty.permit-keepalive-time-s} (10) is the most frequent
+ *       client ping tolerated.
+ *   <li>{@code movie.netty.max-connection-age-s} (300, 0 for unlimited) closes long-lived
+ *       connections, letting their calls finish for {@code movie.netty.max-connection-age-grace-s}
+ *       (30), so clients rebalance across allocations after a deploy.
+ *   <li>{@code movie.netty.max-inbound-message-kb} (4096) bounds request size.
+ * </ul>
+ */
+final class NettyTransport implements AutoCloseable {
+
+  private static final Logger logger = Logger.getLogger(NettyTransport.class.getName());
+
+  private final boolean epoll;
+  private final int workerThreads;
+  private final EventLoopGroup bossGroup;
+  private final EventLoopGroup workerGroup;
+  private final PooledByteBufAllocator allocator;
+
+  private NettyTransport(boolean epoll, int bossThreads, int workerThreads, int directArenas) {
+    this.epoll = epoll;
+    this.workerThreads = workerThreads;
+    this.bossGroup = newGroup(epoll, bossThreads, "grpc-boss");
+    this.workerGroup = newGroup(epoll, workerThreads, "grpc-worker");
+    this.allocator = new PooledByteBufAllocator(true, 0, directArenas,
+        PooledByteBufAllocator.defaultPageSize(), PooledByteBufAllocator.defaultMaxOrder(),
+        PooledByteBufAllocator.defaultSmallCacheSize(),
+        PooledByteBufAllocator.defaultNormalCacheSize(),
+        PooledByteBufAllocator.defaultUseCacheForAllThreads());
+  }
+
+  /**
+   * Creates the event loops and buffer pool from the configuration. They must be closed after the
+   * server has terminated.
+   */
+  static NettyTransport fromConfig() {
+    boolean epoll = false;
+    if (!Config.string("movie.netty.epoll", "auto").equals("off")) {
+      epoll = Epoll.isAvailable();
+      if (!epoll) {
+        logger.info("Native epoll transport unavailable, using NIO: "
+            + Epoll.unavailabilityCause());
+      }
+    }
+    int workerThreads = (int) Config.longValue("movie.netty.worker-threads",
+        Runtime.getRuntime().availableProcessors());
+    return new NettyTransport(epoll,
+        (int) Config.longValue("movie.netty.boss-threads", 1), workerThreads,
+        (int) Config.longValue("movie.netty.direct-arenas", workerThreads));
+  }
+
+  /**
+   * Returns a server builder listening on {@code port} with this transport and the configured
+   * HTTP/2 settings.
+   */
+  NettyServerBuilder serverBuilder(int port) {
+    Class<? extends ServerChannel> channelType = epoll ? EpollServerSocketChannel.class
+        : NioServerSocketChannel.class;
+    NettyServerBuilder builder = NettyServerBuilder.forPort(port)
+        .channelType(channelType)
+        .bossEventLoopGroup(bossGroup)
+        .workerEventLoopGroup(workerGroup)
+        .withOption(ChannelOption.ALLOCATOR, allocator)
+        .withChildOption(ChannelOption.ALLOCATOR, allocator)
+        .initialFlowControlWindow(
+            (int) Config.longValue("movie.netty.flow-control-window-kb", 256) * 1024)
+        .maxConcurrentCallsPerConnection(
+            (int) Config.longValue("movie.netty.max-concurrent-streams", 100))
+        .keepAliveTime(Config.longValue("movie.netty.keepalive-time-s", 60), TimeUnit.SECONDS)
+        .keepAliveTimeout(Config.longValue("movie.netty.keepalive-timeout-s", 20),
+            TimeUnit.SECONDS)
+        .permitKeepAliveTime(Config.longValue("movie.netty.permit-keepalive-time-s", 10),
+            TimeUnit.SECONDS)
+        .maxInboundMessageSize(
+            (int) Config.longValue("movie.netty.max-inbound-message-kb", 4096) * 1024);
+    long maxConnectionAge = Config.longValue("movie.netty.max-connection-age-s", 300);
+    if (maxConnectionAge > 0) {
+      builder.maxConnectionAge(maxConnectionAge, TimeUnit.SECONDS)
+          .maxConnectionAgeGrace(Config.longValue("movie.netty.max-connection-age-grace-s", 30),
+              TimeUnit.SECONDS);
+    }
+    return builder;
+  }
+
+  /**
+   * Describes the transport for the startup log.
+   */
+  String describe() {
+    return (epoll ? "epoll" : "nio") + " transport with " + workerThreads + " worker threads and "
+        + allocator.metric().numDirectArenas() + " direct arenas";
+  }
+
+  @Override
+  public void close() {
+    bossGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+    workerGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+  }
+
+  private static EventLoopGroup newGroup(boolean epoll, int threads, String name) {
+    ThreadFactory threadFactory = new DefaultThreadFactory(name, true);
+    return epoll ? new EpollEventLoopGroup(threads, threadFactory)
+        : new NioEventLoopGroup(threads, threadFactory);
+  }
+}
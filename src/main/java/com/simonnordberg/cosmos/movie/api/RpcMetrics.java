@@ -0,0 +1,196 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCall.Listener;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Per-method call metrics: latency and stream length histograms, message counts, status codes and
+ * calls in flight. Recording is lock-free; counters are {@link LongAdder}s and histograms are
+ * HdrHistogram {@link Recorder}s, which are only merged when the metrics are scraped.
+ */
+final class RpcMetrics implements ServerInterceptor, MetricsSource {
+
+  private static final double[] LATENCY_BUCKETS_SECONDS = {0.0001, 0.00025, 0.0005, 0.001,
+      0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+  private static final long[] STREAM_LENGTH_BUCKETS = {0, 1, 2, 5, 10, 25, 50, 100, 250, 500,
+      1000, 10000};
+
+  private final Map<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+
+  @Override
+  public <ReqT, RespT> Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> serverCall,
+      Metadata metadata, ServerCallHandler<ReqT, RespT> next) {
+    String name = serverCall.getMethodDescriptor().getFullMethodName();
+    MethodMetrics method = methods.get(name);
+    if (method == null) {
+      method = methods.computeIfAbsent(name, MethodMetrics::new);
+    }
+
+    method.inFlight.increment();
+    MeasuredCall<ReqT, RespT> call = new MeasuredCall<>(serverCall, method);
+    MethodMetrics metrics = method;
+    return new SimpleForwardingServerCallListener<>(next.startCall(call, metadata)) {
+      @Override
+      public void onMessage(ReqT message) {
+        metrics.requests.increment();
+        super.onMessage(message);
+      }
+
+      @Override
+      public void onCancel() {
+        call.complete(Status.Code.CANCELLED);
+        super.onCancel();
+      }
+    };
+  }
+
+  @Override
+  public void writeMetrics(StringBuilder out) {
+    MetricsSource.header(out, "grpc_server_handling_seconds", "histogram",
+        "Latency of completed calls.");
+    methods.values().forEach(method -> method.writeLatency(out));
+    MetricsSource.header(out, "grpc_server_msg_sent_per_call", "histogram",
+        "Number of response messages per completed call.");
+    methods.values().forEach(method -> method.writeStreamLength(out));
+    MetricsSource.header(out, "grpc_server_msg_received_total", "counter",
+        "Request messages received.");
+    methods.values().forEach(method -> MetricsSource.sample(out,
+        "grpc_server_msg_received_total", method.labels, method.requests.sum()));
+    MetricsSource.header(out, "grpc_server_msg_sent_total", "counter",
+        "Response messages sent.");
+    methods.values().forEach(method -> MetricsSource.sample(out, "grpc_server_msg_sent_total",
+        method.labels, method.responses.sum()));
+    MetricsSource.header(out, "grpc_server_handled_total", "counter",
+        "Completed calls by status code.");
+    methods.values().forEach(method -> method.writeStatuses(out));
+    MetricsSource.header(out, "grpc_server_in_flight", "gauge", "Calls currently running.");
+    methods.values().forEach(method -> MetricsSource.sample(out, "grpc_server_in_flight",
+        method.labels, method.inFlight.sum()));
+  }
+
+  private static final class MethodMetrics {
+
+    final String labels;
+    final LongAdder inFlight = new LongAdder();
+    final LongAdder requests = new LongAdder();
+    final LongAdder responses = new LongAdder();
+    final LongAdder latencyNanosTotal = new LongAdder();
+    final LongAdder completedResponses = new LongAdder();
+    final LongAdder[] statuses = new LongAdder[Status.Code.values().length];
+    final Recorder latencyRecorder = new Recorder(3);
+    final Recorder streamLengthRecorder = new Recorder(3);
+    private final Histogram latency = new Histogram(3);
+    private final Histogram streamLength = new Histogram(3);
+    private Histogram latencyInterval;
+    private Histogram streamLengthInterval;
+
+    MethodMetrics(String fullMethodName) {
+      int slash = fullMethodName.lastIndexOf('/');
+      labels = "grpc_service=\"" + fullMethodName.substring(0, slash) + "\",grpc_method=\""
+          + fullMethodName.substring(slash + 1) + "\"";
+      for (int i = 0; i < statuses.length; i++) {
+        statuses[i] = new LongAdder();
+      }
+    }
+
+    void record(Status.Code status, long latencyNanos, int streamLength) {
+      statuses[status.ordinal()].increment();
+      latencyRecorder.recordValue(latencyNanos);
+      latencyNanosTotal.add(latencyNanos);
+      streamLengthRecorder.recordValue(streamLength);
+      completedResponses.add(streamLength);
+      inFlight.decrement();
+    }
+
+    synchronized void writeLatency(StringBuilder out) {
+      latencyInterval = latencyRecorder.getIntervalHistogram(latencyInterval);
+      latency.add(latencyInterval);
+      for (double bucket : LATENCY_BUCKETS_SECONDS) {
+        long nanos = (long) (bucket * TimeUnit.SECONDS.toNanos(1));
+        MetricsSource.sample(out, "grpc_server_handling_seconds_bucket",
+            labels + ",le=\"" + bucket + "\"", latency.getCountBetweenValues(0, nanos));
+      }
+      writeTotals(out, "grpc_server_handling_seconds", latency,
+          (double) latencyNanosTotal.sum() / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    synchronized void writeStreamLength(StringBuilder out) {
+      streamLengthInterval = streamLengthRecorder.getIntervalHistogram(streamLengthInterval);
+      streamLength.add(streamLengthInterval);
+      for (long bucket : STREAM_LENGTH_BUCKETS) {
+        MetricsSource.sample(out, "grpc_server_msg_sent_per_call_bucket",
+            labels + ",le=\"" + bucket + "\"", streamLength.getCountBetweenValues(0, bucket));
+      }
+      writeTotals(out, "grpc_server_msg_sent_per_call", streamLength,
+          completedResponses.sum());
+    }
+
+    private void writeTotals(StringBuilder out, String name, Histogram histogram, double sum) {
+      MetricsSource.sample(out, name + "_bucket", labels + ",le=\"+Inf\"",
+          histogram.getTotalCount());
+      MetricsSource.sample(out, name + "_sum", labels, sum);
+      MetricsSource.sample(out, name + "_count", labels, histogram.getTotalCount());
+    }
+
+    void writeStatuses(StringBuilder out) {
+      for (Status.Code code : Status.Code.values()) {
+        long count = statuses[code.ordinal()].sum();
+        if (count > 0) {
+          MetricsSource.sample(out, "grpc_server_handled_total",
+              labels + ",grpc_code=\"" + code.name() + "\"", count);
+        }
+      }
+    }
+  }
+
+  private static final class MeasuredCall<ReqT, RespT>
+      extends SimpleForwardingServerCall<ReqT, RespT> {
+
+    private final MethodMetrics method;
+    private final long startNanos = System.nanoTime();
+    private int responses;
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    MeasuredCall(ServerCall<ReqT, RespT> delegate, MethodMetrics method) {
+      super(delegate);
+      this.method = method;
+    }
+
+    @Override
+    public void sendMessage(RespT message) {
+      responses++;
+      method.responses.increment();
+      super.sendMessage(message);
+    }
+
+    @Override
+    public void close(Status status, Metadata trailers) {
+      complete(status.getCode());
+      super.close(status, trailers);
+    }
+
+    /**
+     * Records the call once, whichever of {@code close} and {@code onCancel} comes first; they run
+     * on different threads.
+     */
+    void complete(Status.Code status) {
+      if (!completed.compareAndSet(false, true)) {
+        return;
+      }
+      method.record(status, System.nanoTime() - startNanos, responses);
+    }
+  }
+}
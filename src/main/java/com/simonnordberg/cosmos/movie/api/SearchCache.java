@@ -0,0 +1,93 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches {@code GetMovies} results by normalized query, so a hit skips the search entirely. The
+ * cache holds matching catalog positions, is bounded by an estimate of its size in bytes and uses
+ * Caffeine's W-TinyLFU admission and eviction, which suits the skewed query mix. Entries are
+ * tagged with the {@linkplain MovieCatalog#generation generation} of the catalog whose positions
+ * they hold and replaced once another catalog is served. Hits and misses are counted here rather
+ * than by Caffeine, which would count an entry of an older catalog as a hit.
+ */
+final class SearchCache implements MetricsSource {
+
+  private static final SearchCache NONE = new SearchCache(null);
+  private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+  private final Cache<String, Result> cache;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  private SearchCache(Cache<String, Result> cache) {
+    this.cache = cache;
+  }
+
+  static SearchCache none() {
+    return NONE;
+  }
+
+  static SearchCache withMaxBytes(long maxBytes) {
+    if (maxBytes <= 0) {
+      return NONE;
+    }
+    return new SearchCache(Caffeine.newBuilder()
+        .maximumWeight(maxBytes)
+        .<String, Result>weigher((query, result) -> ENTRY_OVERHEAD_BYTES + query.length() * 2
+            + result.matches.length * Integer.BYTES)
+        .recordStats()
+        .build());
+  }
+
+  /**
+   * Returns the positions of all movies in {@code catalog} matching {@code query}, from the cache
+   * when possible.
+   */
+  int[] search(MovieCatalog catalog, String query) {
+    if (cache == null) {
+      return catalog.search(query);
+    }
+    String key = TitleIndex.normalize(query);
+    Result result = cache.getIfPresent(key);
+    if (result == null || result.generation != catalog.generation()) {
+      misses.increment();
+      result = new Result(catalog.generation(), catalog.search(query));
+      cache.put(key, result);
+    } else {
+      hits.increment();
+    }
+    return result.matches;
+  }
+
+  @Override
+  public void writeMetrics(StringBuilder out) {
+    if (cache == null) {
+      return;
+    }
+    long hitCount = hits.sum();
+    long missCount = misses.sum();
+    MetricsSource.counter(out, "movie_search_cache_hits_total", "Search cache hits.", hitCount);
+    MetricsSource.counter(out, "movie_search_cache_misses_total",
+        "Search cache misses, including entries of an older catalog.", missCount);
+    MetricsSource.gauge(out, "movie_search_cache_hit_ratio",
+        "Fraction of searches served from the cache.",
+        hitCount + missCount == 0 ? 1.0 : (double) hitCount / (hitCount + missCount));
+    MetricsSource.counter(out, "movie_search_cache_evictions_total",
+        "Entries evicted from the search cache.", cache.stats().evictionCount());
+    MetricsSource.gauge(out, "movie_search_cache_entries", "Entries in the search cache.",
+        cache.estimatedSize());
+  }
+
+  private static final class Result {
+
+    final long generation;
+    final int[] matches;
+
+    Result(long generation, int[] matches) {
+      this.generation = generation;
+      this.matches = matches;
+    }
+  }
+}
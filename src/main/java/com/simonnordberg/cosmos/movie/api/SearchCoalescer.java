@@ -0,0 +1,74 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs identical concurrent {@code GetMovies} searches once. A search for a normalized query of
+ * the same catalog that is already running is not started again: the call attaches to it and
+ * receives the same matches when it completes. Only the search is shared; every call still
+ * filters, orders, pages and streams the matches on its own. Searches are looked up in the
+ * {@link SearchCache} by whichever call runs them, so a burst of one uncached query costs a single
+ * scan instead of one per call.
+ */
+final class SearchCoalescer implements MetricsSource {
+
+  private final SearchCache cache;
+  private final boolean enabled;
+  private final ConcurrentMap<String, CompletableFuture<int[]>> running =
+      new ConcurrentHashMap<>();
+  private final LongAdder executed = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+
+  /**
+   * @param enabled whether identical searches are coalesced; if not, every call runs its own
+   */
+  SearchCoalescer(SearchCache cache, boolean enabled) {
+    this.cache = cache;
+    this.enabled = enabled;
+  }
+
+  /**
+   * Returns the positions of all movies in {@code catalog} matching {@code query}. The search
+   * runs on the calling thread unless an identical one is already running, in which case the
+   * returned future completes when that one does.
+   */
+  CompletableFuture<int[]> search(MovieCatalog catalog, String query) {
+    if (!enabled) {
+      executed.increment();
+      return CompletableFuture.completedFuture(cache.search(catalog, query));
+    }
+    String key = catalog.generation() + ":" + TitleIndex.normalize(query);
+    CompletableFuture<int[]> search = new CompletableFuture<>();
+    CompletableFuture<int[]> existing = running.putIfAbsent(key, search);
+    if (existing != null) {
+      coalesced.increment();
+      return existing;
+    }
+    executed.increment();
+    try {
+      search.complete(cache.search(catalog, query));
+    } catch (RuntimeException | Error e) {
+      search.completeExceptionally(e);
+      throw e;
+    } finally {
+      running.remove(key, search);
+    }
+    return search;
+  }
+
+  @Override
+  public void writeMetrics(StringBuilder out) {
+    long searches = executed.sum();
+    long joined = coalesced.sum();
+    MetricsSource.counter(out, "movie_search_executions_total",
+        "Substring searches run, including those answered by the search cache.", searches);
+    MetricsSource.counter(out, "movie_search_coalesced_total",
+        "Searches that attached to an identical search in progress.", joined);
+    MetricsSource.gauge(out, "movie_search_coalescing_ratio",
+        "Fraction of searches that attached to an identical search in progress.",
+        searches + joined == 0 ? 0 : (double) joined / (searches + joined));
+  }
+}
@@ -0,0 +1,135 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import io.grpc.Metadata;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCall.Listener;
+import io.grpc.ServerCallExecutorSupplier;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How call handlers are executed.
+ */
+enum ServerExecutor {
+  /**
+   * gRPC's default unbounded cached thread pool.
+   */
+  DEFAULT,
+  /**
+   * Handlers run on the transport threads. Only suitable while every handler is non-blocking,
+   * which holds for the in-memory catalog; it saves a thread hand-off per call.
+   */
+  DIRECT,
+  /**
+   * A fixed pool of platform threads. Once {@code threads * 64} tasks are waiting for a thread,
+   * new calls are rejected with {@code RESOURCE_EXHAUSTED} on the transport thread before any
+   * handler code runs. Calls already admitted keep queueing, so none of them loses a callback, and
+   * no handler ever runs on a transport thread.
+   */
+  POOL,
+  /**
+   * A virtual thread per call, for handlers that block. Requires Java 21.
+   */
+  VIRTUAL;
+
+  static ServerExecutor parse(String value) {
+    return valueOf(value.toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * Configures {@code builder} to use this executor and returns the executor created for it, if
+   * any, which the caller must shut down after the server.
+   */
+  ExecutorService apply(ServerBuilder<?> builder, int threads) {
+    ExecutorService executor;
+    switch (this) {
+      case DIRECT:
+        builder.directExecutor();
+        return null;
+      case POOL:
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), namedThreads("grpc-handler-"));
+        BoundedPool bounded = new BoundedPool(pool, threads * 64);
+        // Calls are looked up on the transport thread, which then hands each one to the pool.
+        builder.directExecutor().callExecutor(bounded).intercept(bounded);
+        return pool;
+      case VIRTUAL:
+        executor = newVirtualThreadPerTaskExecutor();
+        break;
+      default:
+        return null;
+    }
+    builder.executor(executor);
+    return executor;
+  }
+
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    // Looked up reflectively so the server still builds and runs on Java 17.
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Virtual threads require Java 21 or later", e);
+    }
+  }
+
+  private static ThreadFactory namedThreads(String prefix) {
+    AtomicInteger counter = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Admits a call to the pool only while its backlog is below {@code maxQueued}. The decision is
+   * made on the transport thread when the call arrives; a rejected call is marked in its headers
+   * and closed by the interceptor, which then runs on the transport thread too.
+   */
+  private static final class BoundedPool implements ServerCallExecutorSupplier, ServerInterceptor {
+
+    private static final Metadata.Key<String> REJECTED =
+        Metadata.Key.of("movie-executor-rejected", Metadata.ASCII_STRING_MARSHALLER);
+
+    private final ThreadPoolExecutor pool;
+    private final int maxQueued;
+
+    BoundedPool(ThreadPoolExecutor pool, int maxQueued) {
+      this.pool = pool;
+      this.maxQueued = maxQueued;
+    }
+
+    @Override
+    public <ReqT, RespT> Executor getExecutor(ServerCall<ReqT, RespT> call, Metadata headers) {
+      headers.discardAll(REJECTED);
+      if (pool.getQueue().size() < maxQueued) {
+        return pool;
+      }
+      headers.put(REJECTED, "");
+      return null;
+    }
+
+    @Override
+    public <ReqT, RespT> Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+        Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+      if (!headers.containsKey(REJECTED)) {
+        return next.startCall(call, headers);
+      }
+      call.close(Status.RESOURCE_EXHAUSTED.withDescription("Server executor queue is full"),
+          new Metadata());
+      return new Listener<>() {};
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.ByteString;
+import com.simonnordberg.cosmos.api.Movie;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The records of one shard: the movies of the full catalog that the {@link ShardRing} assigns to
+ * it, in catalog order, without copying them. Every record remembers its position in the full
+ * catalog so that the results of all shards can be merged into the order of an unsharded server.
+ */
+final class ShardRecords implements MovieRecords {
+
+  private final MovieRecords catalog;
+  private final int[] positions;
+
+  private ShardRecords(MovieRecords catalog, int[] positions) {
+    this.catalog = catalog;
+    this.positions = positions;
+  }
+
+  /**
+   * Selects the records of {@code catalog} that {@code shard} owns. Only the id of every record is
+   * read from its encoding; the movies of other shards are never decoded.
+   */
+  static ShardRecords select(MovieRecords catalog, ShardRing ring, int shard) {
+    int[] positions = new int[catalog.size()];
+    int count = 0;
+    for (int i = 0; i < catalog.size(); i++) {
+      if (ring.owner(catalog.id(i)) == shard) {
+        positions[count++] = i;
+      }
+    }
+    return new ShardRecords(catalog, Arrays.copyOf(positions, count));
+  }
+
+  /**
+   * Returns the normalized titles of all movies of the full catalog, in catalog order, for
+   * {@link FullTextIndex} to score this shard's movies like an unsharded server. Only the name of
+   * every record is read from its encoding.
+   */
+  Iterable<String> catalogTitles() {
+    return () -> new Iterator<>() {
+      private int next;
+
+      @Override
+      public boolean hasNext() {
+        return next < catalog.size();
+      }
+
+      @Override
+      public String next() {
+        if (next >= catalog.size()) {
+          throw new NoSuchElementException();
+        }
+        return TitleIndex.normalize(catalog.name(next++));
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return positions.length;
+  }
+
+  @Override
+  public Movie get(int index) {
+    return catalog.get(positions[index]);
+  }
+
+  @Override
+  public ByteString encoded(int index) {
+    return catalog.encoded(positions[index]);
+  }
+
+  @Override
+  public String id(int index) {
+    return catalog.id(positions[index]);
+  }
+
+  @Override
+  public String name(int index) {
+    return catalog.name(positions[index]);
+  }
+
+  /**
+   * Returns the position in the full catalog of the record at {@code index}.
+   */
+  int catalogPosition(int index) {
+    return positions[index];
+  }
+}
@@ -0,0 +1,97 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Static membership of a sharded deployment and the consistent-hash ring that assigns every movie
+ * id to one shard. Each shard is served by one or more replicas that hold the same movies.
+ *
+ * <p>The ring places {@link #VIRTUAL_NODES} points per shard, so shards own similar numbers of
+ * movies, and adding a shard only moves the ids that land on its points. Every server must be
+ * given the same membership to agree on owners.
+ */
+final class ShardRing {
+
+  static final int VIRTUAL_NODES = 128;
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final List<List<String>> replicas;
+  private final long[] points;
+  private final int[] owners;
+
+  ShardRing(List<List<String>> replicas) {
+    if (replicas.isEmpty()) {
+      throw new IllegalArgumentException("At least one shard is required");
+    }
+    this.replicas = List.copyOf(replicas.stream().map(List::copyOf).toList());
+    long[][] nodes = new long[replicas.size() * VIRTUAL_NODES][];
+    for (int shard = 0; shard < replicas.size(); shard++) {
+      if (replicas.get(shard).isEmpty()) {
+        throw new IllegalArgumentException("Shard " + shard + " has no replicas");
+      }
+      for (int node = 0; node < VIRTUAL_NODES; node++) {
+        nodes[shard * VIRTUAL_NODES + node] = new long[] {hash("shard-" + shard + "#" + node),
+            shard};
+      }
+    }
+    Arrays.sort(nodes, (a, b) -> Long.compare(a[0], b[0]));
+    this.points = new long[nodes.length];
+    this.owners = new int[nodes.length];
+    for (int i = 0; i < nodes.length; i++) {
+      points[i] = nodes[i][0];
+      owners[i] = (int) nodes[i][1];
+    }
+  }
+
+  /**
+   * Parses membership such as {@code a:50051|b:50051,c:50051}: shards are separated by commas and
+   * the replicas of a shard by {@code |}. Shards are numbered in the order given.
+   */
+  static ShardRing parse(String spec) {
+    List<List<String>> replicas = new ArrayList<>();
+    for (String shard : spec.split(",", -1)) {
+      List<String> targets = new ArrayList<>();
+      for (String target : shard.split("\\|", -1)) {
+        if (target.isBlank()) {
+          throw new IllegalArgumentException("Empty replica in shard membership: " + spec);
+        }
+        targets.add(target.trim());
+      }
+      replicas.add(targets);
+    }
+    return new ShardRing(replicas);
+  }
+
+  int shards() {
+    return replicas.size();
+  }
+
+  /**
+   * Returns the targets of the replicas serving {@code shard}.
+   */
+  List<String> replicas(int shard) {
+    return replicas.get(shard);
+  }
+
+  /**
+   * Returns the shard owning the movie with the given id: the one of the first point at or after
+   * the id's hash, wrapping around.
+   */
+  int owner(String id) {
+    int index = Arrays.binarySearch(points, hash(id));
+    if (index < 0) {
+      index = -index - 1;
+    }
+    return owners[index == points.length ? 0 : index];
+  }
+
+  private static long hash(String value) {
+    return HASH.hashString(value, StandardCharsets.UTF_8).asLong();
+  }
+}
@@ -0,0 +1,692 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.simonnordberg.cosmos.api.Movie;
+import com.simonnordberg.cosmos.api.MovieQuery;
+import com.simonnordberg.cosmos.api.MovieShardGrpc;
+import com.simonnordberg.cosmos.api.MoviesQuery;
+import com.simonnordberg.cosmos.api.SearchMode;
+import com.simonnordberg.cosmos.api.ShardKey;
+import com.simonnordberg.cosmos.api.ShardKeyRequest;
+import com.simonnordberg.cosmos.api.ShardMatch;
+import com.simonnordberg.cosmos.api.ShardSearchRequest;
+import com.simonnordberg.cosmos.api.SortOrder;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.Context;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.MethodDescriptor.MethodType;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Serves the calls of a sharded deployment that need movies of other shards, by calling the
+ * {@code MovieShard} service of the servers owning them.
+ *
+ * <p>{@code GetMovie} is sent to the shard owning the id. {@code GetMovies} is sent to all shards
+ * in parallel, and their streams are merged by {@link ShardKey} into the order an unsharded
+ * server would return, so the query's limit applies to the merged results. Ranked matches can be
+ * merged by score because every shard scores with the term and length statistics of the full
+ * catalog, see {@link IndexedCatalog#ofShard}. Each shard stream is read with flow control: the
+ * merge only asks a shard for another match when it has used one, so a slow client or a shard far
+ * ahead of the others never makes this server buffer more than {@link #SHARD_WINDOW} matches per
+ * shard.
+ *
+ * <p>A shard call is hedged: if none of its replicas has answered after the hedge delay, the same
+ * call is also sent to the next replica, the first to answer is used and the other is cancelled.
+ * A replica that is unavailable is failed over to the next one. Calls to this server's own shard
+ * go to {@code local} and are neither hedged nor failed over.
+ *
+ * <p>Calls inherit the deadline and cancellation of the client call they serve.
+ */
+final class ShardRouter implements MetricsSource, AutoCloseable {
+
+  static final int SHARD_WINDOW = 32;
+
+  private static final MethodDescriptor<MovieQuery, ByteString> GET_MOVIE =
+      MovieShardGrpc.getGetShardMovieMethod().toBuilder(
+          MovieShardGrpc.getGetShardMovieMethod().getRequestMarshaller(),
+          EncodedMessageMarshaller.INSTANCE).build();
+
+  private final ShardRing ring;
+  private final int self;
+  private final List<List<Channel>> channels = new ArrayList<>();
+  private final List<ManagedChannel> managedChannels = new ArrayList<>();
+  private final AtomicInteger[] nextReplica;
+  private final long hedgeAfterMillis;
+  private final ScheduledThreadPoolExecutor timer;
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder hedges = new LongAdder();
+  private final LongAdder hedgeWins = new LongAdder();
+  private final LongAdder failovers = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+
+  /**
+   * @param self the shard this server serves, reached through {@code local}
+   * @param connect opens a channel to a replica target of {@code ring}
+   * @param hedgeAfterMillis how long to wait for a replica before also calling the next one; 0
+   *     disables hedging
+   */
+  ShardRouter(ShardRing ring, int self, ManagedChannel local,
+      Function<String, ManagedChannel> connect, long hedgeAfterMillis) {
+    this.ring = ring;
+    this.self = self;
+    this.hedgeAfterMillis = hedgeAfterMillis;
+    this.nextReplica = new AtomicInteger[ring.shards()];
+    managedChannels.add(local);
+    for (int shard = 0; shard < ring.shards(); shard++) {
+      nextReplica[shard] = new AtomicInteger();
+      if (shard == self) {
+        channels.add(List.of(local));
+        continue;
+      }
+      List<Channel> replicas = new ArrayList<>();
+      for (String target : ring.replicas(shard)) {
+        ManagedChannel channel = connect.apply(target);
+        managedChannels.add(channel);
+        replicas.add(channel);
+      }
+      channels.add(replicas);
+    }
+    this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "shard-hedge-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Returns whether this server's shard owns the movie with the given id.
+   */
+  boolean owns(String id) {
+    return ring.owner(id) == self;
+  }
+
+  /**
+   * Orders a match of {@code rank} at catalog {@code position} before {@code key} (negative),
+   * after it (positive) or as equal: higher ranks first, then lower positions.
+   */
+  static int compare(double rank, long position, ShardKey key) {
+    int byRank = Double.compare(key.getRank(), rank);
+    return byRank != 0 ? byRank : Long.compare(position, key.getPosition());
+  }
+
+  static Movie parseMovie(ByteString encoded) {
+    try {
+      return Movie.parseFrom(encoded);
+    } catch (InvalidProtocolBufferException e) {
+      throw Status.INTERNAL.withDescription("Shard returned an invalid movie").withCause(e)
+          .asRuntimeException();
+    }
+  }
+
+  /**
+   * Answers {@code request} with the movie of the owning shard.
+   */
+  <T> void getMovie(MovieQuery request, StreamObserver<T> responseObserver,
+      Function<ByteString, T> decode) {
+    new ShardCall<>(ring.owner(request.getId()), GET_MOVIE, request, new Listener<ByteString>() {
+      private ByteString movie;
+
+      @Override
+      public void onMessage(ByteString message) {
+        movie = message;
+      }
+
+      @Override
+      public void onClose(Status status) {
+        if (status.isOk()) {
+          responseObserver.onNext(decode.apply(movie));
+          responseObserver.onCompleted();
+        } else {
+          responseObserver.onError(status.asRuntimeException());
+        }
+      }
+    }).start();
+  }
+
+  /**
+   * Streams the results of a validated {@code GetMovies} {@code query} from all shards.
+   */
+  <T> void search(MoviesQuery query, ServerCallStreamObserver<T> responseObserver,
+      Function<ByteString, T> decode) {
+    Merge<T> merge = new Merge<>(query, responseObserver, decode);
+    responseObserver.setOnCancelHandler(merge::cancel);
+    responseObserver.setOnReadyHandler(merge::drain);
+    if (query.getPageToken().isEmpty()) {
+      merge.start(null);
+      return;
+    }
+    // The page token is the id of the last movie of the previous page; its owner knows where
+    // the next page starts.
+    String id = query.getPageToken();
+    ShardKeyRequest request = ShardKeyRequest.newBuilder().setId(id).setOrder(query.getOrder())
+        .build();
+    new ShardCall<>(ring.owner(id), MovieShardGrpc.getGetShardKeyMethod(), request,
+        new Listener<ShardKey>() {
+          private ShardKey key;
+
+          @Override
+          public void onMessage(ShardKey message) {
+            key = message;
+          }
+
+          @Override
+          public void onClose(Status status) {
+            if (status.isOk()) {
+              merge.start(key);
+            } else if (status.getCode() == Status.Code.NOT_FOUND) {
+              merge.fail(Status.FAILED_PRECONDITION.withDescription("Unknown page token"));
+            } else {
+              merge.fail(status);
+            }
+          }
+        }).start();
+  }
+
+  @Override
+  public void writeMetrics(StringBuilder out) {
+    MetricsSource.counter(out, "movie_shard_calls_total",
+        "Calls made to shards, not counting hedges and failovers.", calls.sum());
+    MetricsSource.counter(out, "movie_shard_hedges_total",
+        "Shard calls also sent to another replica because the first was slow.", hedges.sum());
+    MetricsSource.counter(out, "movie_shard_hedge_wins_total",
+        "Hedged shard calls answered first by the hedge.", hedgeWins.sum());
+    MetricsSource.counter(out, "movie_shard_failovers_total",
+        "Shard calls retried on another replica because one was unavailable.", failovers.sum());
+    MetricsSource.counter(out, "movie_shard_failures_total",
+        "Shard calls that failed on every replica tried.", failures.sum());
+  }
+
+  @Override
+  public void close() {
+    timer.shutdownNow();
+    managedChannels.forEach(ManagedChannel::shutdownNow);
+  }
+
+  /**
+   * Receives the outcome of a {@link ShardCall}: the messages of the replica that answered, then
+   * its status. Calls are serialized.
+   */
+  private interface Listener<RespT> {
+
+    void onMessage(RespT message);
+
+    void onClose(Status status);
+  }
+
+  /**
+   * One logical call to a shard, made to one or more of its replicas.
+   */
+  private final class ShardCall<ReqT, RespT> {
+
+    private final int shard;
+    private final MethodDescriptor<ReqT, RespT> method;
+    private final ReqT request;
+    private final Listener<RespT> listener;
+    private final Context context = Context.current();
+    private final List<Channel> replicas;
+    private final int firstReplica;
+    // Guarded by this.
+    private final List<Attempt> running = new ArrayList<>();
+    private int attempts;
+    private Attempt committed;
+    private boolean closed;
+    private ScheduledFuture<?> hedge;
+
+    ShardCall(int shard, MethodDescriptor<ReqT, RespT> method, ReqT request,
+        Listener<RespT> listener) {
+      this.shard = shard;
+      this.method = method;
+      this.request = request;
+      this.listener = listener;
+      this.replicas = channels.get(shard);
+      this.firstReplica = Math.floorMod(nextReplica[shard].getAndIncrement(), replicas.size());
+    }
+
+    void start() {
+      calls.increment();
+      Attempt attempt;
+      synchronized (this) {
+        attempt = newAttempt(false);
+        if (replicas.size() > 1 && hedgeAfterMillis > 0) {
+          hedge = timer.schedule(context.wrap(this::hedge), hedgeAfterMillis,
+              TimeUnit.MILLISECONDS);
+        }
+      }
+      attempt.start();
+    }
+
+    /**
+     * Asks the replica that answered for {@code count} more messages.
+     */
+    void request(int count) {
+      Attempt attempt;
+      synchronized (this) {
+        attempt = committed;
+      }
+      if (attempt != null) {
+        attempt.request(count);
+      }
+    }
+
+    void cancel() {
+      List<Attempt> cancelled;
+      synchronized (this) {
+        closed = true;
+        cancelHedge();
+        cancelled = new ArrayList<>(running);
+        running.clear();
+      }
+      cancelled.forEach(attempt -> attempt.cancel("Shard call no longer needed"));
+    }
+
+    private void hedge() {
+      Attempt attempt;
+      synchronized (this) {
+        if (closed || committed != null || attempts >= replicas.size()) {
+          return;
+        }
+        hedges.increment();
+        attempt = newAttempt(true);
+      }
+      attempt.start();
+    }
+
+    private Attempt newAttempt(boolean hedged) {
+      Attempt attempt = new Attempt(replicas.get((firstReplica + attempts) % replicas.size()),
+          hedged);
+      attempts++;
+      running.add(attempt);
+      return attempt;
+    }
+
+    private void cancelHedge() {
+      if (hedge != null) {
+        hedge.cancel(false);
+      }
+    }
+
+    /**
+     * Makes {@code attempt} the one whose responses are used, unless another already is, and
+     * cancels the others. Returns whether {@code attempt} is used.
+     */
+    private boolean commit(Attempt attempt) {
+      List<Attempt> losers;
+      synchronized (this) {
+        if (committed != null || closed) {
+          return committed == attempt && !closed;
+        }
+        committed = attempt;
+        cancelHedge();
+        if (attempt.hedged) {
+          hedgeWins.increment();
+        }
+        losers = new ArrayList<>(running);
+        losers.remove(attempt);
+        running.retainAll(List.of(attempt));
+      }
+      losers.forEach(loser -> loser.cancel("Another replica answered first"));
+      return true;
+    }
+
+    private void completed(Attempt attempt) {
+      if (commit(attempt)) {
+        synchronized (this) {
+          closed = true;
+        }
+        listener.onClose(Status.OK);
+      }
+    }
+
+    private void failed(Attempt attempt, Status status) {
+      Attempt failover = null;
+      synchronized (this) {
+        if (closed || (committed != null && committed != attempt)) {
+          return;
+        }
+        running.remove(attempt);
+        if (committed == null && status.getCode() == Status.Code.UNAVAILABLE) {
+          if (!running.isEmpty()) {
+            // Another replica is still working on it.
+            return;
+          }
+          if (attempts < replicas.size()) {
+            failovers.increment();
+            failover = newAttempt(false);
+          }
+        }
+        if (failover == null) {
+          closed = true;
+          cancelHedge();
+        }
+      }
+      if (failover != null) {
+        failover.start();
+        return;
+      }
+      if (status.getCode() != Status.Code.NOT_FOUND) {
+        failures.increment();
+        status = status.augmentDescription("Shard " + shard);
+      }
+      listener.onClose(status);
+    }
+
+    /**
+     * The call to one replica. Starting and cancelling it are serialized, since a call cancelled
+     * before its request is sent, e.g. because a hedge answered first, would fail the sender.
+     */
+    private final class Attempt implements ClientResponseObserver<ReqT, RespT> {
+
+      private final Channel channel;
+      private final boolean hedged;
+      // Guarded by this.
+      private ClientCallStreamObserver<ReqT> call;
+      private boolean cancelled;
+
+      Attempt(Channel channel, boolean hedged) {
+        this.channel = channel;
+        this.hedged = hedged;
+      }
+
+      synchronized void start() {
+        if (cancelled) {
+          return;
+        }
+        context.run(() -> {
+          if (method.getType() == MethodType.SERVER_STREAMING) {
+            ClientCalls.asyncServerStreamingCall(channel.newCall(method, CallOptions.DEFAULT),
+                request, this);
+          } else {
+            ClientCalls.asyncUnaryCall(channel.newCall(method, CallOptions.DEFAULT), request,
+                this);
+          }
+        });
+      }
+
+      synchronized void cancel(String reason) {
+        cancelled = true;
+        if (call != null) {
+          call.cancel(reason, null);
+        }
+      }
+
+      synchronized void request(int count) {
+        call.request(count);
+      }
+
+      @Override
+      public synchronized void beforeStart(ClientCallStreamObserver<ReqT> requestStream) {
+        call = requestStream;
+        if (method.getType() == MethodType.SERVER_STREAMING) {
+          requestStream.disableAutoRequestWithInitial(SHARD_WINDOW);
+        }
+      }
+
+      @Override
+      public void onNext(RespT value) {
+        if (commit(this)) {
+          listener.onMessage(value);
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        failed(this, Status.fromThrowable(t));
+      }
+
+      @Override
+      public void onCompleted() {
+        completed(this);
+      }
+    }
+  }
+
+  /**
+   * Merges the shard streams of one {@code GetMovies} call into its response. Shard callbacks,
+   * the on-ready handler and the page token lookup all call {@link #drain}; the first caller does
+   * the work and later ones only make it go around once more, which keeps writes to the call
+   * serialized, as in the unsharded search stream.
+   */
+  private final class Merge<T> {
+
+    private final MoviesQuery query;
+    private final ServerCallStreamObserver<T> movies;
+    private final Function<ByteString, T> decode;
+    private final int limit;
+    // Ranked searches sorted by popularity can only be sorted once the best matches are known.
+    private final boolean sortByPopularity;
+    private volatile List<Source> sources;
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean started;
+    private volatile boolean done;
+    private volatile Status failure;
+    // Owned by the draining thread.
+    private int merged;
+    private boolean mergedAll;
+    private List<ShardMatch> collected;
+    private int next;
+
+    Merge(MoviesQuery query, ServerCallStreamObserver<T> movies, Function<ByteString, T> decode) {
+      this.query = query;
+      this.movies = movies;
+      this.decode = decode;
+      boolean ranked = query.getMode() == SearchMode.RANKED;
+      this.limit = ranked && query.getLimit() == 0
+          ? MovieServer.MovieServiceImpl.DEFAULT_RANKED_RESULTS : query.getLimit();
+      this.sortByPopularity = ranked && query.getOrder() == SortOrder.POPULARITY;
+      if (sortByPopularity) {
+        collected = new ArrayList<>();
+      }
+    }
+
+    /**
+     * Sends the query to all shards, resuming after {@code after} if it is not {@code null}.
+     */
+    void start(ShardKey after) {
+      ShardSearchRequest.Builder request = ShardSearchRequest.newBuilder().setQuery(query);
+      if (after != null) {
+        request.setAfter(after);
+      }
+      List<Source> sources = new ArrayList<>(ring.shards());
+      for (int shard = 0; shard < ring.shards(); shard++) {
+        Source source = new Source();
+        source.call = new ShardCall<>(shard, MovieShardGrpc.getSearchShardMethod(),
+            request.build(), source);
+        sources.add(source);
+      }
+      this.sources = sources;
+      started = true;
+      for (Source source : sources) {
+        source.call.start();
+      }
+      if (done) {
+        cancelShards();
+      }
+      drain();
+    }
+
+    void fail(Status status) {
+      failure = status;
+      drain();
+    }
+
+    void cancel() {
+      done = true;
+      cancelShards();
+    }
+
+    void drain() {
+      if (pending.getAndIncrement() != 0) {
+        return;
+      }
+      do {
+        write();
+      } while (pending.decrementAndGet() != 0);
+    }
+
+    private void write() {
+      if (done) {
+        return;
+      }
+      if (failure != null) {
+        finish(failure);
+        return;
+      }
+      if (!started) {
+        return;
+      }
+      if (!mergedAll) {
+        mergedAll = merge();
+        if (!mergedAll) {
+          return;
+        }
+        if (sortByPopularity) {
+          sortCollected();
+        }
+      }
+      if (!sortByPopularity) {
+        finish(Status.OK);
+        return;
+      }
+      while (next < collected.size() && movies.isReady()) {
+        if (movies.isCancelled()) {
+          return;
+        }
+        movies.onNext(decode.apply(collected.get(next++).getMovie()));
+      }
+      if (next >= collected.size()) {
+        finish(Status.OK);
+      }
+    }
+
+    /**
+     * Moves matches from the shards to the response, or to {@link #collected}, in merge order.
+     * Returns whether all matches have been merged.
+     */
+    private boolean merge() {
+      while (limit == 0 || merged < limit) {
+        Source best = null;
+        ShardMatch bestMatch = null;
+        for (Source source : sources) {
+          ShardMatch head = source.matches.peek();
+          if (head == null) {
+            // Every match arrives before the shard finishes, so check for one again after.
+            if (!source.finished) {
+              return false;
+            }
+            head = source.matches.peek();
+            if (head == null) {
+              continue;
+            }
+          }
+          if (bestMatch == null || compare(head.getKey().getRank(), head.getKey().getPosition(),
+              bestMatch.getKey()) < 0) {
+            best = source;
+            bestMatch = head;
+          }
+        }
+        if (best == null) {
+          break;
+        }
+        if (!sortByPopularity && !movies.isReady()) {
+          return false;
+        }
+        if (movies.isCancelled()) {
+          return false;
+        }
+        best.matches.poll();
+        best.call.request(1);
+        merged++;
+        if (sortByPopularity) {
+          collected.add(bestMatch);
+        } else {
+          movies.onNext(decode.apply(bestMatch.getMovie()));
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Orders {@link #collected} as an unsharded server orders ranked matches by popularity: most
+     * popular first, then by catalog position.
+     */
+    private void sortCollected() {
+      float[] popularity = new float[collected.size()];
+      Integer[] order = new Integer[collected.size()];
+      for (int i = 0; i < order.length; i++) {
+        popularity[i] = parseMovie(collected.get(i).getMovie()).getPopularity();
+        order[i] = i;
+      }
+      Arrays.sort(order, Comparator.<Integer>comparingDouble(i -> -popularity[i])
+          .thenComparingLong(i -> collected.get(i).getKey().getPosition()));
+      List<ShardMatch> sorted = new ArrayList<>(order.length);
+      for (int i : order) {
+        sorted.add(collected.get(i));
+      }
+      collected = sorted;
+    }
+
+    private void finish(Status status) {
+      done = true;
+      cancelShards();
+      if (status.isOk()) {
+        movies.onCompleted();
+      } else {
+        movies.onError(status.asRuntimeException());
+      }
+    }
+
+    private void cancelShards() {
+      List<Source> sources = this.sources;
+      if (sources != null) {
+        sources.forEach(source -> source.call.cancel());
+      }
+    }
+
+    /**
+     * The matches a shard has sent that are not merged yet.
+     */
+    private final class Source implements Listener<ShardMatch> {
+
+      private final Queue<ShardMatch> matches = new ConcurrentLinkedQueue<>();
+      private volatile boolean finished;
+      private ShardCall<ShardSearchRequest, ShardMatch> call;
+
+      @Override
+      public void onMessage(ShardMatch match) {
+        matches.add(match);
+        drain();
+      }
+
+      @Override
+      public void onClose(Status status) {
+        if (status.isOk()) {
+          finished = true;
+          drain();
+        } else {
+          fail(status);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Top-k prefix suggestions over normalized titles.
+ *
+ * <p>Titles are kept as one array of catalog positions sorted by normalized title, which is the
+ * leaf order of a trie over the titles: the titles under any trie node, i.e. sharing a prefix, form
+ * a contiguous range found by binary search. Instead of caching top-k lists at every node, a
+ * segment tree over that order holds the best title of every range, so the top k of any prefix are
+ * found in O(k log n) from two int arrays.
+ *
+ * <p>Titles rank by score, then by length, so that short exact-ish titles come first.
+ */
+final class SuggestIndex {
+
+  private final TitleColumn titles;
+  private final float[] scores;
+  private final int[] order;
+  private final int leaves;
+  private final int[] tree;
+
+  /**
+   * @param titles normalized titles by catalog position, shared with the caller
+   * @param scores popularity by catalog position, higher first
+   */
+  SuggestIndex(TitleColumn titles, float[] scores) {
+    this.titles = titles;
+    this.scores = scores;
+    this.order = sortedPositions(titles);
+
+    int leaves = 1;
+    while (leaves < order.length) {
+      leaves <<= 1;
+    }
+    this.leaves = leaves;
+    this.tree = new int[2 * leaves];
+    Arrays.fill(tree, -1);
+    for (int i = 0; i < order.length; i++) {
+      tree[leaves + i] = i;
+    }
+    for (int node = leaves - 1; node > 0; node--) {
+      tree[node] = better(tree[2 * node], tree[2 * node + 1]);
+    }
+  }
+
+  /**
+   * Returns the catalog positions of up to {@code k} of the best titles starting with
+   * {@code prefix}, best first.
+   */
+  int[] suggest(String prefix, int k) {
+    String normalized = TitleIndex.normalize(prefix);
+    int from = lowerBound(normalized);
+    int to = upperBound(normalized, from);
+    if (from >= to || k <= 0) {
+      return new int[0];
+    }
+
+    int[] result = new int[Math.min(k, to - from)];
+    PriorityQueue<int[]> ranges = new PriorityQueue<>(
+        (a, b) -> a[2] == b[2] ? 0 : better(a[2], b[2]) == a[2] ? -1 : 1);
+    ranges.add(new int[] {from, to, best(from, to)});
+    for (int n = 0; n < result.length; n++) {
+      int[] range = ranges.poll();
+      int best = range[2];
+      result[n] = order[best];
+      if (range[0] < best) {
+        ranges.add(new int[] {range[0], best, best(range[0], best)});
+      }
+      if (best + 1 < range[1]) {
+        ranges.add(new int[] {best + 1, range[1], best(best + 1, range[1])});
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the heap used by the index itself, excluding the shared titles.
+   */
+  long footprintBytes() {
+    return (long) (order.length + tree.length) * Integer.BYTES;
+  }
+
+  /**
+   * Returns the best position in the sorted range [from, to).
+   */
+  private int best(int from, int to) {
+    int result = -1;
+    for (int lo = from + leaves, hi = to + leaves; lo < hi; lo >>= 1, hi >>= 1) {
+      if ((lo & 1) == 1) {
+        result = better(result, tree[lo++]);
+      }
+      if ((hi & 1) == 1) {
+        result = better(result, tree[--hi]);
+      }
+    }
+    return result;
+  }
+
+  private int better(int a, int b) {
+    if (a < 0) {
+      return b;
+    }
+    if (b < 0) {
+      return a;
+    }
+    int compare = Float.compare(scores[order[b]], scores[order[a]]);
+    if (compare == 0) {
+      compare = Integer.compare(titles.length(order[a]), titles.length(order[b]));
+    }
+    return compare < 0 || (compare == 0 && a < b) ? a : b;
+  }
+
+  private int lowerBound(String prefix) {
+    int lo = 0;
+    int hi = order.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (titles.compareTo(order[mid], prefix) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private int upperBound(String prefix, int from) {
+    int lo = from;
+    int hi = order.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (titles.startsWith(order[mid], prefix)) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Returns the positions sorted by title, equal titles by position. This is a bottom-up merge
+   * sort of primitive arrays, so that sorting takes two ints per title rather than a boxed integer
+   * each.
+   */
+  private static int[] sortedPositions(TitleColumn titles) {
+    int[] order = new int[titles.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    int[] buffer = new int[order.length];
+    for (int width = 1; width < order.length; width *= 2) {
+      for (int from = 0; from < order.length; from += 2 * width) {
+        int middle = Math.min(from + width, order.length);
+        int to = Math.min(from + 2 * width, order.length);
+        int i = from;
+        int j = middle;
+        for (int k = from; k < to; k++) {
+          // Taking from the left run on ties keeps the sort stable.
+          if (j >= to || (i < middle && titles.compare(order[i], order[j]) <= 0)) {
+            buffer[k] = order[i++];
+          } else {
+            buffer[k] = order[j++];
+          }
+        }
+      }
+      int[] swap = order;
+      order = buffer;
+      buffer = swap;
+    }
+    return order;
+  }
+}
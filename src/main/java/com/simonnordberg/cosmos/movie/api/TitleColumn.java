@@ -0,0 +1,150 @@
+package com.simonnordberg.cosmos.movie.api;
+
+/**
+ * Normalized titles stored as one column: a single string holding every title followed by a
+ * separator that never occurs in a normalized query, and the offset each title starts at. The
+ * title indexes of a catalog all share one column, so every title is held once and without the
+ * header, array and reference of a string of its own.
+ */
+final class TitleColumn {
+
+  static final char SEPARATOR = '\0';
+
+  private final String column;
+  private final int[] starts;
+
+  TitleColumn(String[] normalizedTitles) {
+    this(filled(normalizedTitles));
+  }
+
+  private TitleColumn(Builder builder) {
+    this.column = builder.column.toString();
+    this.starts = builder.starts;
+  }
+
+  private static Builder filled(String[] normalizedTitles) {
+    Builder builder = new Builder(normalizedTitles.length);
+    for (String title : normalizedTitles) {
+      builder.add(title);
+    }
+    return builder;
+  }
+
+  int size() {
+    return starts.length - 1;
+  }
+
+  /**
+   * Returns the whole column, for searches spanning many titles.
+   */
+  String column() {
+    return column;
+  }
+
+  /**
+   * Returns the column offset of the first character of {@code title}. {@code title} may be
+   * {@link #size()}, whose start is the end of the column.
+   */
+  int start(int title) {
+    return starts[title];
+  }
+
+  int length(int title) {
+    return starts[title + 1] - 1 - starts[title];
+  }
+
+  /**
+   * Returns {@code title} as a new string.
+   */
+  String title(int title) {
+    return column.substring(starts[title], starts[title + 1] - 1);
+  }
+
+  boolean startsWith(int title, String prefix) {
+    return prefix.length() <= length(title) && column.startsWith(prefix, starts[title]);
+  }
+
+  /**
+   * Compares {@code title} with {@code other} like {@link String#compareTo}.
+   */
+  int compareTo(int title, String other) {
+    int start = starts[title];
+    int length = length(title);
+    int common = Math.min(length, other.length());
+    for (int i = 0; i < common; i++) {
+      char c = column.charAt(start + i);
+      char d = other.charAt(i);
+      if (c != d) {
+        return c - d;
+      }
+    }
+    return length - other.length();
+  }
+
+  /**
+   * Compares two titles like {@link String#compareTo}.
+   */
+  int compare(int a, int b) {
+    int startA = starts[a];
+    int startB = starts[b];
+    int lengthA = length(a);
+    int lengthB = length(b);
+    int common = Math.min(lengthA, lengthB);
+    for (int i = 0; i < common; i++) {
+      char c = column.charAt(startA + i);
+      char d = column.charAt(startB + i);
+      if (c != d) {
+        return c - d;
+      }
+    }
+    return lengthA - lengthB;
+  }
+
+  /**
+   * Returns the title containing column offset {@code offset}, searching titles [from, to).
+   */
+  int titleAt(int offset, int from, int to) {
+    int lo = from;
+    int hi = to - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (starts[mid] <= offset) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Appends titles in position order, so that a column can be built without holding every title
+   * as a string of its own first.
+   */
+  static final class Builder {
+
+    private final StringBuilder column = new StringBuilder();
+    private final int[] starts;
+    private int size;
+
+    Builder(int size) {
+      this.starts = new int[size + 1];
+    }
+
+    void add(String normalizedTitle) {
+      starts[size++] = column.length();
+      column.append(normalizedTitle).append(SEPARATOR);
+      starts[size] = column.length();
+    }
+
+    /**
+     * Returns the column; every title must have been added.
+     */
+    TitleColumn build() {
+      if (size != starts.length - 1) {
+        throw new IllegalStateException(size + " of " + (starts.length - 1) + " titles added");
+      }
+      return new TitleColumn(this);
+    }
+  }
+}
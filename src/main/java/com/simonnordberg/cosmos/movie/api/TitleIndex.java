@@ -0,0 +1,281 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Trigram index over case-folded, accent-stripped titles. A query is narrowed to the titles that
+ * contain all of its trigrams by intersecting their posting lists, and every candidate is then
+ * confirmed with a literal substring match. Queries shorter than a trigram fall back to a scan.
+ *
+ * <p>Posting lists of common trigrams, which hold most postings, are delta and varint encoded like
+ * those of {@link FullTextIndex}: their gaps mostly fit in a byte, so they take about a quarter of
+ * the heap of an {@code int[]}. The shortest list is decoded once and the others are intersected
+ * with it as they are read; an encoded list also samples one entry in {@value #SKIP_INTERVAL}, so
+ * that the intersection jumps over its runs that hold no candidate.
+ */
+final class TitleIndex {
+
+  private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+  private static final int[] NO_MATCHES = new int[0];
+  private static final int SKIP_INTERVAL = 64;
+  // Lists whose titles are this far apart on average are kept as ints; a one-byte varint holds
+  // gaps below 128.
+  private static final int DENSE_GAP = 128;
+
+  private final TitleColumn titles;
+  private final Map<Long, PostingList> postings;
+  private final TitleScanner scanner;
+
+  /**
+   * @param titles titles by catalog position, already {@linkplain #normalize normalized}
+   */
+  TitleIndex(TitleColumn titles) {
+    String column = titles.column();
+    Map<Long, Postings> builders = new HashMap<>();
+    for (int i = 0; i < titles.size(); i++) {
+      int end = titles.start(i) + titles.length(i);
+      for (int j = titles.start(i); j + 3 <= end; j++) {
+        builders.computeIfAbsent(trigram(column, j), key -> new Postings()).add(i);
+      }
+    }
+    // Each builder is dropped as soon as its list is encoded, so the two are not all held at once.
+    this.postings = new HashMap<>(builders.size() * 4 / 3 + 1);
+    for (Iterator<Map.Entry<Long, Postings>> it = builders.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Long, Postings> entry = it.next();
+      postings.put(entry.getKey(), entry.getValue().encoded(titles.size()));
+      it.remove();
+    }
+    this.titles = titles;
+    this.scanner = new TitleScanner(titles);
+  }
+
+  /**
+   * Folds case and strips accents so that accented and unaccented spellings index the same way.
+   */
+  static String normalize(String s) {
+    String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+    return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Returns the normalized titles by position.
+   */
+  TitleColumn titles() {
+    return titles;
+  }
+
+  /**
+   * Returns the positions of all titles containing {@code query}, in ascending order.
+   */
+  int[] search(String query) {
+    String needle = normalize(query);
+    if (needle.length() < 3) {
+      return scanner.scan(needle);
+    }
+
+    PostingList[] lists = new PostingList[needle.length() - 2];
+    for (int j = 0; j < lists.length; j++) {
+      PostingList list = postings.get(trigram(needle, j));
+      if (list == null) {
+        return NO_MATCHES;
+      }
+      lists[j] = list;
+    }
+    Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+
+    int[] candidates = lists[0].toArray();
+    int count = candidates.length;
+    for (int j = 1; j < lists.length && count > 0; j++) {
+      count = lists[j].intersect(candidates, count);
+    }
+
+    // Candidates are in column order, so one forward search confirms them all: a hit beyond a
+    // candidate also answers the candidates before it, and the column is read at most once.
+    String column = titles.column();
+    int hit = -1;
+    int matches = 0;
+    for (int k = 0; k < count; k++) {
+      int candidate = candidates[k];
+      if (hit < titles.start(candidate)) {
+        hit = column.indexOf(needle, titles.start(candidate));
+        if (hit < 0) {
+          break;
+        }
+      }
+      if (hit + needle.length() < titles.start(candidate + 1)) {
+        candidates[matches++] = candidate;
+      }
+    }
+    return Arrays.copyOf(candidates, matches);
+  }
+
+  private static long trigram(String s, int offset) {
+    return ((long) s.charAt(offset) << 32) | ((long) s.charAt(offset + 1) << 16)
+        | s.charAt(offset + 2);
+  }
+
+  /**
+   * Titles in ascending order. A dense list is kept as varint gaps, with the title and the offset
+   * just past it for every {@value #SKIP_INTERVAL}th title. A sparse one, whose titles are
+   * {@value #DENSE_GAP} or more apart on average, is kept as an {@code int[]}: varints would save
+   * at most half of it, sparse lists hold few of the postings, and the queries that intersect
+   * them are the selective ones, which an {@code int[]} answers several times faster.
+   */
+  private static final class PostingList {
+
+    final int size;
+    // Exactly one of ints and bytes is set.
+    final int[] ints;
+    final byte[] bytes;
+    final int[] skipTitles;
+    final int[] skipEnds;
+
+    PostingList(int size, int[] ints, byte[] bytes, int[] skipTitles, int[] skipEnds) {
+      this.size = size;
+      this.ints = ints;
+      this.bytes = bytes;
+      this.skipTitles = skipTitles;
+      this.skipEnds = skipEnds;
+    }
+
+    /**
+     * Returns the titles of the list.
+     */
+    int[] toArray() {
+      return ints != null ? ints.clone() : decode(bytes, size);
+    }
+
+    /**
+     * Decodes the first {@code size} varint gaps of {@code bytes} into titles.
+     */
+    static int[] decode(byte[] bytes, int size) {
+      int[] out = new int[size];
+      int title = 0;
+      for (int count = 0, position = 0; count < size; count++) {
+        int delta = 0;
+        for (int shift = 0; ; shift += 7) {
+          byte b = bytes[position++];
+          delta |= (b & 0x7F) << shift;
+          if (b >= 0) {
+            break;
+          }
+        }
+        title += delta;
+        out[count] = title;
+      }
+      return out;
+    }
+
+    /**
+     * Intersects the first {@code count} entries of {@code target}, which must be sorted, with
+     * this list in place and returns the new count.
+     */
+    int intersect(int[] target, int count) {
+      return ints != null ? intersectInts(target, count) : intersectBytes(target, count);
+    }
+
+    private int intersectInts(int[] target, int count) {
+      int n = 0;
+      for (int i = 0, j = 0; i < count && j < ints.length; ) {
+        if (target[i] < ints[j]) {
+          i++;
+        } else if (target[i] > ints[j]) {
+          j++;
+        } else {
+          target[n++] = target[i];
+          i++;
+          j++;
+        }
+      }
+      return n;
+    }
+
+    private int intersectBytes(int[] target, int count) {
+      int n = 0;
+      int position = 0;
+      int skip = 0;
+      // The last title read from the list, -1 before the first.
+      int title = -1;
+      for (int i = 0; i < count; i++) {
+        int candidate = target[i];
+        for (; skip < skipTitles.length && skipTitles[skip] <= candidate; skip++) {
+          if (skipTitles[skip] > title) {
+            title = skipTitles[skip];
+            position = skipEnds[skip];
+          }
+        }
+        while (title < candidate && position < bytes.length) {
+          int delta = 0;
+          for (int shift = 0; ; shift += 7) {
+            byte b = bytes[position++];
+            delta |= (b & 0x7F) << shift;
+            if (b >= 0) {
+              break;
+            }
+          }
+          title = Math.max(title, 0) + delta;
+        }
+        if (title == candidate) {
+          target[n++] = candidate;
+        } else if (title < candidate) {
+          break;
+        }
+      }
+      return n;
+    }
+  }
+
+  private static final class Postings {
+
+    private static final int[] NO_SKIPS = new int[0];
+
+    private byte[] bytes = new byte[4];
+    private int length;
+    private int last = -1;
+    private int size;
+    private int[] skipTitles = NO_SKIPS;
+    private int[] skipEnds = NO_SKIPS;
+
+    void add(int id) {
+      if (id == last) {
+        return;
+      }
+      // A varint takes at most five bytes.
+      if (length + 5 > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+      }
+      int delta = last < 0 ? id : id - last;
+      while ((delta & ~0x7F) != 0) {
+        bytes[length++] = (byte) ((delta & 0x7F) | 0x80);
+        delta >>>= 7;
+      }
+      bytes[length++] = (byte) delta;
+      last = id;
+      if (++size % SKIP_INTERVAL == 0) {
+        int skips = size / SKIP_INTERVAL;
+        if (skips > skipTitles.length) {
+          skipTitles = Arrays.copyOf(skipTitles, Math.max(4, skips * 2));
+          skipEnds = Arrays.copyOf(skipEnds, skipTitles.length);
+        }
+        skipTitles[skips - 1] = id;
+        skipEnds[skips - 1] = length;
+      }
+    }
+
+    PostingList encoded(int titles) {
+      if ((long) size * DENSE_GAP < titles) {
+        return new PostingList(size, PostingList.decode(bytes, size), null, NO_SKIPS, NO_SKIPS);
+      }
+      int skips = size / SKIP_INTERVAL;
+      return new PostingList(size, null, Arrays.copyOf(bytes, length),
+          skips == 0 ? NO_SKIPS : Arrays.copyOf(skipTitles, skips),
+          skips == 0 ? NO_SKIPS : Arrays.copyOf(skipEnds, skips));
+    }
+  }
+}
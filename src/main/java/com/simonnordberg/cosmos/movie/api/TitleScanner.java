@@ -0,0 +1,102 @@
+package com.simonnordberg.cosmos.movie.api;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.stream.IntStream;
+
+/**
+ * Brute-force substring search over all titles, for queries no index can narrow down.
+ *
+ * <p>The titles are searched in their {@link TitleColumn}, a single string with the titles
+ * separated by a character that never occurs in a query. Searching it with
+ * {@link String#indexOf(String, int)} uses the JDK's vectorized string search intrinsic, and
+ * skipping to the next title after each hit keeps the work proportional to the column size. Large
+ * catalogs are split into slices that are scanned in parallel on a pool of
+ * {@code movie.scan.parallelism} threads (one per processor by default) shared by all scanners,
+ * rather than on the common pool, which is sized one below the processor count and shared with
+ * everything else in the process. Slices are concatenated in order, so results are always in
+ * title order.
+ */
+final class TitleScanner {
+
+  static final int PARALLEL_THRESHOLD = 1 << 16;
+  private static final ForkJoinPool POOL = new ForkJoinPool(
+      (int) Config.longValue("movie.scan.parallelism", Runtime.getRuntime().availableProcessors()),
+      pool -> {
+        ForkJoinWorkerThread thread =
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("title-scan-" + thread.getPoolIndex());
+        return thread;
+      }, null, false);
+
+  private final TitleColumn titles;
+  private final ForkJoinPool pool;
+
+  TitleScanner(TitleColumn titles) {
+    this(titles, POOL);
+  }
+
+  TitleScanner(TitleColumn titles, ForkJoinPool pool) {
+    this.titles = titles;
+    this.pool = pool;
+  }
+
+  /**
+   * Returns the positions of all titles containing the normalized {@code needle}, in ascending
+   * order.
+   */
+  int[] scan(String needle) {
+    int count = titles.size();
+    if (needle.isEmpty()) {
+      return IntStream.range(0, count).toArray();
+    }
+    if (needle.indexOf(TitleColumn.SEPARATOR) >= 0) {
+      return new int[0];
+    }
+    if (count < PARALLEL_THRESHOLD) {
+      return scan(needle, 0, count);
+    }
+
+    int slices = Math.max(1, count / (PARALLEL_THRESHOLD / 4));
+    // A parallel stream started from a task runs on that task's pool.
+    int[][] results = pool.submit(() -> IntStream.range(0, slices).parallel()
+        .mapToObj(slice -> scan(needle, (int) ((long) count * slice / slices),
+            (int) ((long) count * (slice + 1) / slices)))
+        .toArray(int[][]::new)).join();
+    int total = 0;
+    for (int[] result : results) {
+      total += result.length;
+    }
+    int[] matches = new int[total];
+    int position = 0;
+    for (int[] result : results) {
+      System.arraycopy(result, 0, matches, position, result.length);
+      position += result.length;
+    }
+    return matches;
+  }
+
+  private int[] scan(String needle, int fromTitle, int toTitle) {
+    int[] matches = new int[16];
+    int count = 0;
+    String column = titles.column();
+    int end = titles.start(toTitle);
+    int from = titles.start(fromTitle);
+    int title = fromTitle;
+    while (true) {
+      int hit = column.indexOf(needle, from);
+      if (hit < 0 || hit >= end) {
+        break;
+      }
+      title = titles.titleAt(hit, title, toTitle);
+      if (count == matches.length) {
+        matches = Arrays.copyOf(matches, count * 2);
+      }
+      matches[count++] = title;
+      // The rest of this title cannot add another match.
+      from = titles.start(++title);
+    }
+    return Arrays.copyOf(matches, count);
+  }
+}